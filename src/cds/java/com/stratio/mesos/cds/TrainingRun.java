@@ -0,0 +1,186 @@
+package com.stratio.mesos.cds;
+
+import com.stratio.mesos.Janithor;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class-data-sharing training and startup report for the janithor fat jar, run by the cds profile.
+ * Both modes start a stand-in master serving the test fixtures (legacy endpoints and v1 operator API, gzip encoded).
+ * <pre>
+ * TrainingRun --check                          fails unless this JVM is 11+, run first with the cds.java of the profile
+ * TrainingRun                                  runs the main CLI operations in this JVM, to record the loaded classes
+ * TrainingRun --report java janithor.jar archive  times a lookup in fresh JVMs, without sharing, with the JDK archive
+ *                                                 and with the janithor archive
+ * </pre>
+ */
+public class TrainingRun {
+    private static final String PRINCIPAL = "kafka-sec";
+    private static final String ROLE = "kafka-sec";
+    private static final String SERVICE = "kafka-sec";
+    private static final int REPORT_RUNS = 5;
+    private static final int MIN_JAVA = 11;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--check".equals(args[0])) {
+            check();
+            return;
+        }
+
+        HttpServer master = standInMaster();
+        String url = "http://localhost:" + master.getAddress().getPort();
+        try {
+            if (args.length > 0 && "--report".equals(args[0])) {
+                report(url, args[1], args[2], args[3]);
+            } else {
+                train(url);
+            }
+        } finally {
+            master.stop(0);
+        }
+    }
+
+    private static void train(String url) throws IOException {
+        String[] service = {"-u", url, "-p", PRINCIPAL, "-r", ROLE, "-f", SERVICE};
+        for (String operation : Arrays.asList("lookup", "resources", "unreserve", "teardown", "exhibitor", "marathon")) {
+            Janithor.run(concat(new String[]{"-o", operation}, service));
+        }
+        Janithor.run(concat(new String[]{"-o", "lookup", "-api", "v1"}, service));
+        Janithor.run(concat(new String[]{"-o", "unreserve", "-n", "4", "-t", "token"}, service));
+
+        Path manifest = Files.createTempFile("janithor-training", ".json");
+        try {
+            Files.write(manifest, ("[{\"framework\":\"" + SERVICE + "\",\"principal\":\"" + PRINCIPAL + "\",\"role\":\"" + ROLE + "\"," +
+                    "\"operations\":[\"lookup\",\"resources\",\"teardown\",\"exhibitor\"]}]").getBytes(StandardCharsets.UTF_8));
+            Janithor.run(new String[]{"-o", "batch", "-u", url, "-m", manifest.toString()});
+        } finally {
+            Files.delete(manifest);
+        }
+        Janithor.run(new String[]{"-h"});
+    }
+
+    // -Xlog and the archive options of the next steps fail with an unrecognized option error on older JVMs
+    private static void check() {
+        String version = System.getProperty("java.specification.version");
+        int major = Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+        if (major < MIN_JAVA) {
+            System.err.println("The cds profile needs a Java " + MIN_JAVA + "+ runtime, " + System.getProperty("java.home")
+                    + " is Java " + version + ". Point -Dcds.java to a JDK " + MIN_JAVA + "+ java executable, "
+                    + "e.g. mvn -P cds package -Dcds.java=/usr/lib/jvm/java-17-openjdk-amd64/bin/java");
+            System.exit(1);
+        }
+    }
+
+    // startup dominates a short run, so the whole process is timed
+    private static void report(String url, String java, String jar, String archive) throws Exception {
+        String[] lookup = {"-jar", jar, "-o", "lookup", "-u", url, "-p", PRINCIPAL, "-r", ROLE, "-f", SERVICE};
+        long off = median(concat(new String[]{java, "-Xshare:off"}, lookup));
+        long jdk = median(concat(new String[]{java, "-Xshare:auto"}, lookup));
+        long app = median(concat(new String[]{java, "-Xshare:on", "-XX:SharedArchiveFile=" + archive}, lookup));
+
+        System.out.println("Lookup against the fixtures, median wall time of " + REPORT_RUNS + " runs");
+        System.out.println(String.format("  sharing off:           %5d ms", off));
+        System.out.println(String.format("  JDK default archive:   %5d ms (%.0f%%)", jdk, 100.0 * jdk / off));
+        System.out.println(String.format("  janithor archive:      %5d ms (%.0f%%)", app, 100.0 * app / off));
+    }
+
+    private static long median(String[] command) throws Exception {
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < REPORT_RUNS; i++) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null"))
+                    .start();
+            if (process.waitFor() != 0) {
+                throw new IllegalStateException("Command failed: " + String.join(" ", command));
+            }
+            times.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        Collections.sort(times);
+        return times.get(times.size() / 2);
+    }
+
+    private static HttpServer standInMaster() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/frameworks", exchange -> respond(exchange, 200, fixture("frameworks_kafka_sec.json")));
+        server.createContext("/slaves", exchange -> respond(exchange, 200, fixture("slaves_kafka_sec.json")));
+        server.createContext("/unreserve", exchange -> respond(exchange, 202, new byte[0]));
+        server.createContext("/destroy-volumes", exchange -> respond(exchange, 202, new byte[0]));
+        server.createContext("/teardown", exchange -> respond(exchange, 200, new byte[0]));
+        // a service znode without children
+        server.createContext("/exhibitor", exchange -> respond(exchange, 200,
+                "GET".equals(exchange.getRequestMethod()) ? "[]".getBytes(StandardCharsets.UTF_8) : new byte[0]));
+        server.createContext("/v2/apps", exchange -> respond(exchange, 200, "{}".getBytes(StandardCharsets.UTF_8)));
+        server.createContext("/api/v1", exchange -> {
+            // JSON only, as older masters: protobuf state calls are refused and retried in JSON
+            if ("application/x-protobuf".equals(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                respond(exchange, 415, new byte[0]);
+                return;
+            }
+            String call = new String(read(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            if (call.contains("GET_FRAMEWORKS")) respond(exchange, 200, fixture("operator_frameworks.json"));
+            else if (call.contains("GET_TASKS")) respond(exchange, 200, fixture("operator_tasks.json"));
+            else if (call.contains("GET_AGENTS")) respond(exchange, 200, fixture("operator_agents.json"));
+            else respond(exchange, 202, new byte[0]);
+        });
+        server.start();
+        return server;
+    }
+
+    private static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+        read(exchange.getRequestBody());
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (body.length > 0 && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(body);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] fixture(String name) throws IOException {
+        try (InputStream in = TrainingRun.class.getClassLoader().getResourceAsStream(name)) {
+            return read(in);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
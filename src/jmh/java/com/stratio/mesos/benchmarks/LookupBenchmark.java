@@ -0,0 +1,121 @@
+package com.stratio.mesos.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.stratio.mesos.api.MesosApi;
+import com.stratio.mesos.http.MesosInterface;
+import com.stratio.mesos.state.FrameworkIndex;
+import com.stratio.mesos.state.ReservationIndex;
+import com.stratio.mesos.state.Resource;
+import com.stratio.mesos.state.StateParser;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import retrofit2.mock.Calls;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the lookups done by every operation, against the kafka-sec fixtures and synthetic clusters of growing size.
+ * Warm lookups query an already parsed snapshot, cold lookups download and parse both documents again,
+ * parse benchmarks isolate the streaming parser and the indexes built on top of it.
+ * Results are operations per second, readable both for warm lookups and for whole cold parses
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class LookupBenchmark {
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    @Param({SyntheticState.FIXTURE, "1000", "10000", "50000"})
+    public String agents;
+
+    private SyntheticState state;
+    private MesosApi mesosApi;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        state = SyntheticState.of(agents);
+        mesosApi = new MesosApi();
+        mesosApi.setServerFilters(false);
+        mesosApi.setMesosInterface(standInMaster(state));
+    }
+
+    @Benchmark
+    public Optional<String[]> findFrameworkId() {
+        return mesosApi.findFrameworkId(state.name, state.role, state.principal);
+    }
+
+    @Benchmark
+    public Optional<String[]> findSlavesForFramework() {
+        return mesosApi.findSlavesForFramework(state.frameworkId);
+    }
+
+    @Benchmark
+    public String[] findResourcesFor() {
+        return mesosApi.findResourcesFor(state.role, state.slaveId);
+    }
+
+    @Benchmark
+    public List<Resource> findReservationsFor() {
+        return mesosApi.findReservationsFor(state.role, state.slaveId);
+    }
+
+    @Benchmark
+    public String[] coldLookup() {
+        mesosApi.refreshSnapshot();
+        mesosApi.findFrameworkId(state.name, state.role, state.principal);
+        return mesosApi.findResourcesFor(state.role, state.slaveId);
+    }
+
+    @Benchmark
+    public JsonNode parseFrameworks() throws IOException {
+        return StateParser.parseFrameworks(new ByteArrayInputStream(state.frameworks));
+    }
+
+    @Benchmark
+    public JsonNode parseSlaves() throws IOException {
+        return StateParser.parseSlaves(new ByteArrayInputStream(state.slaves));
+    }
+
+    @Benchmark
+    public FrameworkIndex indexFrameworks() throws IOException {
+        return FrameworkIndex.from(StateParser.parseFrameworks(new ByteArrayInputStream(state.frameworks)));
+    }
+
+    @Benchmark
+    public ReservationIndex indexSlaves() throws IOException {
+        return ReservationIndex.from(StateParser.parseSlaves(new ByteArrayInputStream(state.slaves)));
+    }
+
+    // master answering every /frameworks and /slaves request with the documents held in memory
+    private static MesosInterface standInMaster(SyntheticState state) {
+        return (MesosInterface) Proxy.newProxyInstance(MesosInterface.class.getClassLoader(), new Class<?>[]{MesosInterface.class},
+                (proxy, method, args) -> {
+                    if (method.getName().startsWith("findFramework")) {
+                        return Calls.response(ResponseBody.create(JSON, state.frameworks));
+                    } else if (method.getName().startsWith("findResources")) {
+                        return Calls.response(ResponseBody.create(JSON, state.slaves));
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,161 @@
+package com.stratio.mesos.benchmarks;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Master /frameworks and /slaves documents used by the benchmarks: the test fixtures or synthetic clusters
+ * with one framework every ten agents, each framework running tasks on three agents with reserved resources
+ */
+class SyntheticState {
+    static final String FIXTURE = "fixture";
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final int AGENTS_PER_FRAMEWORK = 10;
+    private static final int TASKS_PER_FRAMEWORK = 3;
+
+    final byte[] frameworks;
+    final byte[] slaves;
+    final String name;
+    final String role;
+    final String principal;
+    final String frameworkId;
+    final String slaveId;
+
+    private SyntheticState(byte[] frameworks, byte[] slaves, String name, String role, String principal, String frameworkId, String slaveId) {
+        this.frameworks = frameworks;
+        this.slaves = slaves;
+        this.name = name;
+        this.role = role;
+        this.principal = principal;
+        this.frameworkId = frameworkId;
+        this.slaveId = slaveId;
+    }
+
+    /**
+     * @param agents "fixture" for the kafka-sec test fixtures, or the number of agents of a synthetic cluster
+     */
+    static SyntheticState of(String agents) throws IOException {
+        if (FIXTURE.equals(agents)) {
+            return new SyntheticState(read("frameworks_kafka_sec.json"), read("slaves_kafka_sec.json"),
+                    "kafka-sec", "kafka-sec", "kafka-sec",
+                    "f84a629e-8d2a-45d7-aac7-d95a75149212-0001", "80f0fb53-95a0-409b-a78d-ca0e002cc289-S9");
+        }
+
+        int agentCount = Integer.parseInt(agents);
+        int frameworkCount = Math.max(1, agentCount / AGENTS_PER_FRAMEWORK);
+        int target = frameworkCount / 2;
+        return new SyntheticState(frameworks(frameworkCount), slaves(frameworkCount, agentCount),
+                "service-" + target, "role-" + target, "principal-" + target, "framework-" + target, agentFor(target, 0));
+    }
+
+    private static byte[] frameworks(int frameworkCount) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator json = FACTORY.createGenerator(out)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("frameworks");
+            for (int f = 0; f < frameworkCount; f++) {
+                json.writeStartObject();
+                json.writeStringField("id", "framework-" + f);
+                json.writeStringField("name", "service-" + f);
+                json.writeStringField("role", "role-" + f);
+                json.writeStringField("principal", "principal-" + f);
+                json.writeBooleanField("active", true);
+                json.writeStringField("webui_url", "http://service-" + f + ".marathon.mesos:8080");
+                json.writeArrayFieldStart("tasks");
+                for (int t = 0; t < TASKS_PER_FRAMEWORK; t++) {
+                    json.writeStartObject();
+                    json.writeStringField("id", "service-" + f + "__task-" + t);
+                    json.writeStringField("name", "task-" + t);
+                    json.writeStringField("framework_id", "framework-" + f);
+                    json.writeStringField("slave_id", agentFor(f, t));
+                    json.writeStringField("state", "TASK_RUNNING");
+                    json.writeObjectFieldStart("resources");
+                    json.writeNumberField("cpus", 1);
+                    json.writeNumberField("mem", 1024);
+                    json.writeNumberField("disk", 5000);
+                    json.writeEndObject();
+                    json.writeEndObject();
+                }
+                json.writeEndArray();
+                json.writeArrayFieldStart("completed_tasks");
+                json.writeEndArray();
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeArrayFieldStart("completed_frameworks");
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] slaves(int frameworkCount, int agentCount) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator json = FACTORY.createGenerator(out)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("slaves");
+            for (int a = 0; a < agentCount; a++) {
+                json.writeStartObject();
+                json.writeStringField("id", "agent-" + a);
+                json.writeStringField("hostname", "10.0." + (a / 256) + "." + (a % 256));
+                json.writeObjectFieldStart("reserved_resources_full");
+                // tasks of a framework run on the first agents of its group of ten
+                int framework = a / AGENTS_PER_FRAMEWORK;
+                if (framework < frameworkCount && a % AGENTS_PER_FRAMEWORK < TASKS_PER_FRAMEWORK) {
+                    json.writeArrayFieldStart("role-" + framework);
+                    writeResource(json, "cpus", framework, "{\"value\":1}");
+                    writeResource(json, "mem", framework, "{\"value\":1024}");
+                    writeResource(json, "ports", framework, null);
+                    writeResource(json, "disk", framework, "{\"value\":5000}");
+                    json.writeEndArray();
+                }
+                json.writeEndObject();
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeResource(JsonGenerator json, String name, int framework, String scalar) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("name", name);
+        json.writeStringField("role", "role-" + framework);
+        if (scalar != null) {
+            json.writeStringField("type", "SCALAR");
+            json.writeFieldName("scalar");
+            json.writeRawValue(scalar);
+        } else {
+            json.writeStringField("type", "RANGES");
+            json.writeFieldName("ranges");
+            json.writeRawValue("{\"range\":[{\"begin\":9092,\"end\":9092}]}");
+        }
+        json.writeObjectFieldStart("reservation");
+        json.writeStringField("principal", "principal-" + framework);
+        json.writeEndObject();
+        json.writeEndObject();
+    }
+
+    // each framework owns a group of ten consecutive agents
+    private static String agentFor(int framework, int task) {
+        return "agent-" + (framework * AGENTS_PER_FRAMEWORK + task);
+    }
+
+    private static byte[] read(String resource) throws IOException {
+        try (InputStream in = SyntheticState.class.getClassLoader().getResourceAsStream(resource)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
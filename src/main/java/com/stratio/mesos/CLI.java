@@ -3,8 +3,14 @@ package com.stratio.mesos;
 import com.stratio.mesos.api.ExhibitorApi;
 import com.stratio.mesos.api.MarathonApi;
 import com.stratio.mesos.api.MesosApi;
+import com.stratio.mesos.batch.BatchRunner;
+import com.stratio.mesos.batch.Manifest;
+import com.stratio.mesos.plan.Plan;
+import com.stratio.mesos.plan.UninstallPlan;
+import com.stratio.mesos.state.Resource;
 
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by alonso on 30/06/17.
@@ -12,59 +18,75 @@ import java.util.Arrays;
 public class CLI {
 
     // mesos resources unreserve
-    public static void unreserve(MesosApi mesos, String principal, String role, String serviceName, boolean active) {
+    public static boolean unreserve(MesosApi mesos, String principal, String role, String serviceName, boolean active) {
+        return unreserve(mesos, principal, role, serviceName, active, 1);
+    }
+
+    // mesos resources unreserve, processing up to parallelism slaves at the same time
+    public static boolean unreserve(MesosApi mesos, String principal, String role, String serviceName, boolean active, int parallelism) {
         String[] frameworkIds = findFrameworkIds(mesos, principal, role, serviceName, active);
         println("Found " + frameworkIds.length + " frameworks");
-        for (String frameworkId : frameworkIds) {
-            unreserve(mesos, frameworkId, role);
-        }
+        return frameworkIds.length > 0 && unreserve(mesos, frameworkIds, role, parallelism);
     }
 
     // mesos resources unreserve
-    public static void unreserve(MesosApi mesos, String frameworkId, String role) {
-        Arrays.stream(
-                mesos.findSlavesForFramework(frameworkId).orElse(new String[]{}))
-                .forEach(slaveId -> {
-                    System.out.println("Looking for resources on slave " + slaveId);
-                    String[] resources = mesos.findResourcesFor(role, slaveId);
-                    for (String resource : resources) {
-                        int code = mesos.unreserveResourceFor(slaveId, resource);
-                        System.out.println("Janithor " + resource + ": " + code);
-                    }
-                });
+    public static boolean unreserve(MesosApi mesos, String frameworkId, String role) {
+        return unreserve(mesos, frameworkId, role, 1);
+    }
+
+    // mesos resources unreserve, slaves are processed concurrently but reported in lookup order
+    public static boolean unreserve(MesosApi mesos, String frameworkId, String role, int parallelism) {
+        return unreserve(mesos, new String[]{frameworkId}, role, parallelism);
+    }
+
+    // slaves are unreserved while the rest are still being discovered
+    private static boolean unreserve(MesosApi mesos, String[] frameworkIds, String role, int parallelism) {
+        try {
+            return new UnreservePipeline(mesos, role, parallelism, CLI::println).run(frameworkIds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            println("Janithor unreserve interrupted for frameworks " + Arrays.toString(frameworkIds));
+            return false;
+        }
     }
 
     // Mesos framework teardown
-    public static void teardown(MesosApi mesos, String principal, String role, String serviceName, boolean active) {
+    public static boolean teardown(MesosApi mesos, String principal, String role, String serviceName, boolean active) {
         if (role==null) {
             boolean teardown = mesos.teardown(serviceName);
             println("Teardown "+serviceName+" returned " + teardown);
+            return teardown;
         } else {
             String[] frameworkIds = findFrameworkIds(mesos, principal, role, serviceName, active);
             println("Found " + frameworkIds.length + " frameworks");
+            boolean tornDown = frameworkIds.length > 0;
             for (String frameworkId : frameworkIds) {
                 boolean teardown = mesos.teardown(frameworkId);
                 println("Teardown "+frameworkId+" returned " + teardown);
+                tornDown &= teardown;
             }
+            return tornDown;
         }
     }
 
     // Marathon service destroy
-    public static void destroy(MarathonApi marathon, String serviceName) {
+    public static boolean destroy(MarathonApi marathon, String serviceName) {
         boolean destroy = marathon.destroy(serviceName);
         System.out.println("Marathon service "+serviceName+" shutdown is " + destroy);
+        return destroy;
     }
 
     // transform ppal, role and framework into FrameworkId
-    public static void lookup(MesosApi mesos, String principal, String role, String serviceName, boolean active) {
+    public static boolean lookup(MesosApi mesos, String principal, String role, String serviceName, boolean active) {
         String[] frameworkIds = mesos.findFrameworkId(serviceName, role, principal, active).orElse(new String[]{});
         for (String frameworkId : frameworkIds) {
             println(frameworkId);
         }
+        return frameworkIds.length > 0;
     }
 
     // list all resources
-    public static void resources(MesosApi mesos, String principal, String role, String serviceName, boolean active) {
+    public static boolean resources(MesosApi mesos, String principal, String role, String serviceName, boolean active) {
         String[] frameworkIds = findFrameworkIds(mesos, principal, role, serviceName, active);
         println("Found " + frameworkIds.length + " frameworks");
 
@@ -74,18 +96,70 @@ public class CLI {
                     mesos.findSlavesForFramework(frameworkId).orElse(new String[]{}))
                     .forEach(slaveId -> {
                         println("\nResources on slave " + slaveId);
-                        String[] resources = mesos.findResourcesFor(role, slaveId);
-                        for (String resource : resources) {
-                            println(resource);
+                        List<Resource> resources = mesos.findReservationsFor(role, slaveId);
+                        if (resources == null) {
+                            println("Unable to find resources on slave " + slaveId);
+                            return;
                         }
+                        resources.forEach(resource -> println(resource.toString()));
                     });
         }
+        return frameworkIds.length > 0;
     }
 
-    // exhibitor znode cleanup
-    public static void cleanup(ExhibitorApi exhibitor, String serviceName) {
+    // exhibitor znode cleanup, a single delete of the znode
+    public static boolean cleanup(ExhibitorApi exhibitor, String serviceName) {
+        try {
+            ExhibitorApi.checkZnode(serviceName);
+        } catch (IllegalArgumentException e) {
+            println("Service " + serviceName + " was not deleted: " + e.getMessage());
+            return false;
+        }
         boolean deleted = exhibitor.delete(serviceName);
         println("Service " + serviceName + " was " + (deleted?"deleted successfully":"not deleted"));
+        return deleted;
+    }
+
+    // exhibitor znode cleanup, deleting the tree below it bottom-up with up to parallelism requests at the same time
+    public static boolean cleanupRecursively(ExhibitorApi exhibitor, String serviceName, int parallelism) {
+        ExhibitorApi.DeleteReport report;
+        try {
+            report = exhibitor.deleteRecursively(serviceName, parallelism);
+        } catch (IllegalArgumentException e) {
+            println("Service " + serviceName + " was not deleted: " + e.getMessage());
+            return false;
+        }
+        println(report.toString());
+        println("Service " + serviceName + " was " + (report.isSucceeded()?"deleted successfully":"not deleted"));
+        return report.isSucceeded();
+    }
+
+    // full uninstall: marathon destroy, teardown, unreserve and exhibitor delete as a plan of concurrent steps
+    public static boolean uninstall(MesosApi mesos, MarathonApi marathon, ExhibitorApi exhibitor, String principal, String role,
+                                    String serviceName, String znode, boolean active, int parallelism, boolean dryRun) {
+        Plan plan;
+        try {
+            plan = UninstallPlan.build(mesos, marathon, exhibitor, principal, role, serviceName, znode, active);
+        } catch (IllegalArgumentException e) {
+            println("Service " + serviceName + " was not uninstalled: " + e.getMessage());
+            return false;
+        }
+        println(plan.describe());
+        if (dryRun) {
+            return true;
+        }
+
+        Plan.Report report = plan.run(parallelism, CLI::println);
+        println(report.toString());
+        return report.isSuccessful();
+    }
+
+    // runs every service of a batch manifest and prints the summary
+    public static BatchRunner.Report batch(BatchRunner runner, Manifest manifest) {
+        println("Running " + manifest.getServices().size() + " services from batch manifest");
+        BatchRunner.Report report = runner.run(manifest);
+        println(report.toString());
+        return report;
     }
 
     public static String dcosToken(String url, String user, String pass) {
@@ -4,20 +4,62 @@ import com.stratio.mesos.api.ApiBuilder;
 import com.stratio.mesos.api.ExhibitorApi;
 import com.stratio.mesos.api.MarathonApi;
 import com.stratio.mesos.api.MesosApi;
+import com.stratio.mesos.batch.BatchRunner;
+import com.stratio.mesos.batch.Manifest;
+import com.stratio.mesos.http.HTTPUtils;
+import com.stratio.mesos.http.LimitInterceptor;
+import com.stratio.mesos.http.TransferStats;
+import com.stratio.mesos.metrics.Metrics;
+import com.stratio.mesos.plan.UninstallPlan;
+import com.stratio.mesos.server.JanithorServer;
 import org.apache.commons.cli.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by alonso on 26/06/17.
  */
 public class Janithor {
+    private static final Logger LOG = LoggerFactory.getLogger(Janithor.class);
+    private static final long STARTED_AT = System.currentTimeMillis();
+    // clients built before the operation runs, only for the operations that use them
+    private static final Set<String> MESOS_OPERATIONS = new HashSet<>(Arrays.asList(
+            "lookup", "teardown", "unreserve", "resources", "uninstall", "serve"));
+    private static final Set<String> EXHIBITOR_OPERATIONS = new HashSet<>(Arrays.asList("exhibitor", "uninstall", "serve"));
+    private static final Set<String> MARATHON_OPERATIONS = new HashSet<>(Arrays.asList("marathon", "uninstall", "serve"));
 
     public static void main(String[] args) {
+        // the server keeps running in its own threads, every other operation reports its outcome
+        int status = run(args);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs a command line without exiting the JVM
+     * @param args command line arguments
+     * @return exit status, 0 when the operation succeeded or the server started, 1 otherwise
+     */
+    public static int run(String[] args) {
         CommandLineParser parser;
         CommandLine cmd;
 
         Options options = new Options();
-        options.addOption("o", "operation", true, "Operation to perform (lookup, teardown, unreserve, resources, exhibitor, marathon, token)");
-        options.addOption("u", "url", true, "Mesos master url");
+        options.addOption("o", "operation", true, "Operation to perform (lookup, teardown, unreserve, resources, exhibitor, marathon, uninstall, token, batch, serve)");
+        options.addOption("u", "url", true, "Mesos master url, or comma separated masters to find the leader among them");
         options.addOption("p", "principal", true, "Principal");
         options.addOption("r", "role", true, "Role");
         options.addOption("f", "framework", true, "Framework name");
@@ -26,6 +68,20 @@ public class Janithor {
         options.addOption("s", true, "Secret based authentication");
         options.addOption("sso", true, "Automatic sso authentication (user:pass)");
         options.addOption("x", true, "URL prefix (mesos, master)");
+        options.addOption("api", true, "Mesos master API (legacy, v1), default legacy");
+        options.addOption("n", "parallelism", true, "Concurrent slaves on unreserve (default 1), steps on uninstall (default 4), requests on recursive exhibitor delete (default 8)");
+        options.addOption("m", "manifest", true, "Batch manifest file, JSON or NDJSON (default stdin)");
+        options.addOption(null, "dry-run", false, "Print the uninstall plan without running it");
+        options.addOption(null, "recursive", false, "Delete the exhibitor znode and everything below it, bottom-up");
+        options.addOption(null, "port", true, "Server listening port (default 8080)");
+        options.addOption(null, "bind", true, "Server listening address, 0.0.0.0 for every interface (default 127.0.0.1)");
+        options.addOption(null, "server-token", true, "Token required in the X-Janithor-Token header of server POST requests (default random, printed on start)");
+        options.addOption(null, "ttl", true, "Server cluster state cache in seconds (default 30)");
+        options.addOption(null, "max-in-flight", true, "Concurrent requests per host, adapted to the master latency (default 32)");
+        options.addOption(null, "rate", true, "Requests per second per host, 0 for no limit (default 50)");
+        options.addOption(null, "pool-size", true, "Idle connections kept open for reuse (default --max-in-flight)");
+        options.addOption(null, "keep-alive", true, "Seconds an idle connection is kept open (default 300)");
+        options.addOption(null, "metrics-file", true, "Prometheus text file written when the operation finishes");
         options.addOption("h", false, "Show help");
 
         parser = new BasicParser();
@@ -33,9 +89,25 @@ public class Janithor {
             cmd = parser.parse(options, args);
             if (cmd.getOptions().length == 0 || cmd.hasOption("h")) {
                 new HelpFormatter().printHelp(Janithor.class.getCanonicalName(), options);
-                return;
+                return 0;
+            }
+
+            // mesos master API, checked before any client is built
+            if (cmd.hasOption("api") && !isApiVersion(cmd.getOptionValue("api"))) {
+                System.out.println("Unknown mesos API " + cmd.getOptionValue("api") + ", expected legacy or v1");
+                new HelpFormatter().printHelp(Janithor.class.getCanonicalName(), options);
+                return 1;
             }
 
+            // numeric options, checked before any client is built
+            int parallelism = (int) longOption(cmd, "n", 1, 1, Integer.MAX_VALUE);
+            int maxInFlight = (int) longOption(cmd, "max-in-flight", LimitInterceptor.DEFAULT_MAX_IN_FLIGHT, 1, Integer.MAX_VALUE);
+            double rate = doubleOption(cmd, "rate", LimitInterceptor.DEFAULT_REQUESTS_PER_SECOND, 0);
+            int poolSize = (int) longOption(cmd, "pool-size", 0, 0, Integer.MAX_VALUE);
+            long keepAlive = longOption(cmd, "keep-alive", HTTPUtils.DEFAULT_KEEP_ALIVE_SECONDS, 1, Long.MAX_VALUE);
+            int port = (int) longOption(cmd, "port", 8080, 1, 65535);
+            long ttl = longOption(cmd, "ttl", 30, 0, Long.MAX_VALUE);
+
             String url = cmd.getOptionValue("u");
             String principal = cmd.getOptionValue("p");
             String role = cmd.getOptionValue("r");
@@ -47,54 +119,173 @@ public class Janithor {
                 active = Boolean.valueOf(cmd.getOptionValue("a"));
             }
 
+            // requests in flight and per second sent to every host
+            if (cmd.hasOption("max-in-flight") || cmd.hasOption("rate")) {
+                HTTPUtils.configureLimits(maxInFlight, rate);
+            }
+
+            // connections kept open between requests, one per request in flight unless sized explicitly
+            if (cmd.hasOption("pool-size") || cmd.hasOption("keep-alive")) {
+                HTTPUtils.configureConnectionPool(poolSize, keepAlive, TimeUnit.SECONDS);
+            }
+
             // automatic sso authentication
             String[] sso = new String[]{"", ""};
             if (cmd.hasOption("sso")) {
                 sso = cmd.getOptionValue("sso").split(":");
             }
 
-            MesosApi mesos = buildApi(cmd, url, principal, MesosApi.class);
-            ExhibitorApi exhibitor = buildApi(cmd, url, principal, ExhibitorApi.class);
-            MarathonApi marathon = buildApi(cmd, url, principal, MarathonApi.class);
-
+            // only the clients required by the operation are built, batch builds its own on first use
             String operation = cmd.getOptionValue("o");
+            MesosApi mesos = usesClient(operation, MesosApi.class) ? buildApi(cmd, url, principal, MesosApi.class) : null;
+            ExhibitorApi exhibitor = usesClient(operation, ExhibitorApi.class) ? buildApi(cmd, url, principal, ExhibitorApi.class) : null;
+            MarathonApi marathon = usesClient(operation, MarathonApi.class) ? buildApi(cmd, url, principal, MarathonApi.class) : null;
+            logStartup();
+
+            boolean success = false;
             switch (operation) {
                 case "lookup":
-                    CLI.lookup(mesos, principal, role, serviceName, active);
+                    success = CLI.lookup(mesos, principal, role, serviceName, active);
                     break;
                 case "teardown":
-                    CLI.teardown(mesos, principal, role, serviceName, active);
+                    success = CLI.teardown(mesos, principal, role, serviceName, active);
                     break;
                 case "unreserve":
-                    CLI.unreserve(mesos, principal, role, serviceName, active);
+                    success = CLI.unreserve(mesos, principal, role, serviceName, active, parallelism);
                     break;
                 case "resources":
-                    CLI.resources(mesos, principal, role, serviceName, active);
+                    success = CLI.resources(mesos, principal, role, serviceName, active);
                     break;
                 case "exhibitor":
-                    CLI.cleanup(exhibitor, serviceName);
+                    success = cmd.hasOption("recursive")
+                            ? CLI.cleanupRecursively(exhibitor, serviceName, cmd.hasOption("n") ? parallelism : ExhibitorApi.DEFAULT_PARALLELISM)
+                            : CLI.cleanup(exhibitor, serviceName);
                     break;
                 case "marathon":
-                    CLI.destroy(marathon, serviceName);
+                    success = CLI.destroy(marathon, serviceName);
+                    break;
+                case "uninstall":
+                    success = CLI.uninstall(mesos, marathon, exhibitor,
+                            principal, role, serviceName, serviceName, active,
+                            cmd.hasOption("n") ? parallelism : UninstallPlan.DEFAULT_PARALLELISM, cmd.hasOption("dry-run"));
                     break;
                 case "token":
-                    CLI.dcosToken(url, sso[0], sso[1]);
+                    success = CLI.dcosToken(url, sso[0], sso[1]) != null;
                     break;
+                case "batch":
+                    success = batch(cmd, url, principal, sso, parallelism);
+                    break;
+                case "serve":
+                    // the server keeps running, its transfers and metrics are exposed on /metrics instead
+                    serve(cmd, mesos, exhibitor, marathon, port, ttl);
+                    return 0;
             }
 
+            TransferStats.report().forEach(LOG::info);
+            Metrics.recordRun(operation, success);
+            if (cmd.hasOption("metrics-file")) {
+                writeMetrics(cmd.getOptionValue("metrics-file"));
+            }
+            return success ? 0 : 1;
+
         } catch (ParseException e) {
-            System.out.println("Missing required options");
+            System.out.println(e.getMessage());
             new HelpFormatter().printHelp(Janithor.class.getCanonicalName(), options);
+            return 1;
+        }
+    }
+
+    // every service of the manifest shares the clients, the master state and a single sso login
+    private static boolean batch(CommandLine cmd, String url, String principal, String[] sso, int parallelism) {
+        Manifest manifest;
+        try (InputStream in = cmd.hasOption("m") ? new FileInputStream(cmd.getOptionValue("m")) : System.in) {
+            manifest = Manifest.read(in);
+        } catch (IOException e) {
+            System.out.println("Unable to read batch manifest: " + e.getMessage());
+            return false;
+        }
+
+        String token = cmd.getOptionValue("t");
+        if (token == null && cmd.hasOption("sso")) {
+            token = MarathonApi.obtainToken(sso[0], sso[1], url + "/login?firstUser=false");
+        }
+
+        String authentication = token;
+        return CLI.batch(new BatchRunner(
+                () -> buildApi(cmd, authentication, url, principal, MesosApi.class),
+                () -> buildApi(cmd, authentication, url, principal, ExhibitorApi.class),
+                () -> buildApi(cmd, authentication, url, principal, MarathonApi.class),
+                parallelism), manifest).getFailed() == 0;
+    }
+
+    // long-running server, clients and cluster state are kept between requests
+    private static void serve(CommandLine cmd, MesosApi mesos, ExhibitorApi exhibitor, MarathonApi marathon, int port, long ttl) {
+        String bind = cmd.getOptionValue("bind", JanithorServer.DEFAULT_BIND);
+        String token = cmd.getOptionValue("server-token");
+        if (token == null) {
+            byte[] random = new byte[32];
+            new SecureRandom().nextBytes(random);
+            token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+            System.out.println("Server token: " + token);
+        }
+
+        mesos.getSnapshot().setMaxAge(ttl, TimeUnit.SECONDS);
+        JanithorServer server = new JanithorServer(mesos, exhibitor, marathon, token);
+        try {
+            server.start(bind, port);
+        } catch (IOException e) {
+            System.out.println("Unable to start server on " + bind + ":" + port + ": " + e.getMessage());
+        }
+    }
+
+    private static boolean isApiVersion(String value) {
+        return Arrays.stream(MesosApi.ApiVersion.values()).anyMatch(version -> version.name().equalsIgnoreCase(value));
+    }
+
+    private static long longOption(CommandLine cmd, String option, long defaultValue, long min, long max) throws ParseException {
+        if (!cmd.hasOption(option)) return defaultValue;
+        String value = cmd.getOptionValue(option).trim();
+        try {
+            long parsed = Long.parseLong(value);
+            if (parsed >= min && parsed <= max) return parsed;
+        } catch (NumberFormatException e) {
+            // reported below along with the accepted range
+        }
+        throw new ParseException("Invalid value " + value + " for option " + option + ", expected an integer "
+                + (max == Long.MAX_VALUE || max == Integer.MAX_VALUE ? ">= " + min : "between " + min + " and " + max));
+    }
+
+    private static double doubleOption(CommandLine cmd, String option, double defaultValue, double min) throws ParseException {
+        if (!cmd.hasOption(option)) return defaultValue;
+        String value = cmd.getOptionValue(option).trim();
+        try {
+            double parsed = Double.parseDouble(value);
+            if (!Double.isInfinite(parsed) && !Double.isNaN(parsed) && parsed >= min) return parsed;
+        } catch (NumberFormatException e) {
+            // reported below along with the accepted range
+        }
+        throw new ParseException("Invalid value " + value + " for option " + option + ", expected a number >= " + min);
+    }
+
+    private static void writeMetrics(String file) {
+        try {
+            Metrics.writeTo(Paths.get(file));
+        } catch (IOException e) {
+            LOG.info("Unable to write metrics file with message " + e.getMessage());
         }
     }
 
     private static <T> T buildApi(CommandLine cmd, String url, String principal, Class<T> client) {
+        return buildApi(cmd, cmd.getOptionValue("t"), url, principal, client);
+    }
+
+    private static <T> T buildApi(CommandLine cmd, String token, String url, String principal, Class<T> client) {
         String authentication;
         T api;
 
         // token based authentication
-        if (cmd.hasOption("t")) {
-            authentication = cmd.getOptionValue("t");
+        if (token != null) {
+            authentication = token;
             api = ApiBuilder.build(authentication, url, client);
             // secret based authentication
         } else if (cmd.hasOption("s")) {
@@ -112,8 +303,30 @@ public class Janithor {
             } else {
                 ((MesosApi) api).setEndpointsPrefix(MesosApi.EndpointPrefix.EMPTY);
             }
+            if (cmd.hasOption("api")) {
+                ((MesosApi) api).setApiVersion(MesosApi.ApiVersion.valueOf(cmd.getOptionValue("api").toUpperCase()));
+            }
         }
 
         return api;
     }
+
+    /**
+     * @param operation operation given with -o
+     * @param client MesosApi, ExhibitorApi or MarathonApi
+     * @return whether the client is built before the operation runs
+     */
+    public static boolean usesClient(String operation, Class<?> client) {
+        if (client == MesosApi.class) return MESOS_OPERATIONS.contains(operation);
+        if (client == ExhibitorApi.class) return EXHIBITOR_OPERATIONS.contains(operation);
+        if (client == MarathonApi.class) return MARATHON_OPERATIONS.contains(operation);
+        return false;
+    }
+
+    // time spent from JVM launch until the operation is ready to run; regressions are measured by the cds report
+    private static void logStartup() {
+        long now = System.currentTimeMillis();
+        LOG.info("Startup completed in {} ms ({} ms since JVM start)",
+                now - STARTED_AT, now - ManagementFactory.getRuntimeMXBean().getStartTime());
+    }
 }
\ No newline at end of file
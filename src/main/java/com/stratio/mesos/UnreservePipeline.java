@@ -0,0 +1,174 @@
+package com.stratio.mesos;
+
+import com.stratio.mesos.api.MesosApi;
+import com.stratio.mesos.http.HTTPUtils;
+import com.stratio.mesos.state.Resource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Streams the slaves of several frameworks into the workers that unreserve them, so the first slave is released
+ * while the rest are still being discovered. Slaves of every framework are looked up concurrently and handed over
+ * through a bounded queue: discovery waits when the workers fall behind. A slave shared by several frameworks is
+ * unreserved once. Reports are printed in discovery order as soon as all the previous slaves are done
+ */
+class UnreservePipeline {
+    // slaves discovered ahead of the workers, per worker
+    private static final int QUEUE_PER_WORKER = 2;
+    private static final Slave END = new Slave(-1, null);
+
+    private final MesosApi mesos;
+    private final String role;
+    private final int workers;
+    private final Consumer<String> output;
+
+    // reports waiting for a previous slave, and the next one to print
+    private final Map<Integer, SlaveReport> finished = new HashMap<>();
+    private int printed;
+    private boolean unreserved = true;
+
+    UnreservePipeline(MesosApi mesos, String role, int parallelism, Consumer<String> output) {
+        this.mesos = mesos;
+        this.role = role;
+        this.workers = Math.max(1, parallelism);
+        this.output = output;
+    }
+
+    /**
+     * @param frameworkIds frameworks whose slaves are unreserved
+     * @return whether every resource of every slave was unreserved
+     * @throws InterruptedException if interrupted while handing over slaves or waiting for the workers
+     */
+    boolean run(String[] frameworkIds) throws InterruptedException {
+        BlockingQueue<Slave> queue = new ArrayBlockingQueue<>(workers * QUEUE_PER_WORKER);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<?>> consumers = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                consumers.add(executor.submit(() -> consume(queue)));
+            }
+
+            try {
+                produce(frameworkIds, queue);
+            } finally {
+                for (int i = 0; i < workers; i++) {
+                    queue.put(END);
+                }
+            }
+
+            for (Future<?> consumer : consumers) {
+                try {
+                    consumer.get();
+                } catch (ExecutionException e) {
+                    finish(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        synchronized (this) {
+            return unreserved;
+        }
+    }
+
+    // every framework is looked up at once, slaves are emitted in framework order as soon as their lookup completes
+    private void produce(String[] frameworkIds, BlockingQueue<Slave> queue) throws InterruptedException {
+        List<CompletableFuture<Optional<String[]>>> lookups = new ArrayList<>(frameworkIds.length);
+        for (String frameworkId : frameworkIds) {
+            lookups.add(mesos.findSlavesForFrameworkAsync(frameworkId));
+        }
+
+        Set<String> discovered = new HashSet<>();
+        int position = 0;
+        for (CompletableFuture<Optional<String[]>> lookup : lookups) {
+            for (String slaveId : lookup.join().map(Arrays::asList).orElse(new ArrayList<>())) {
+                if (discovered.add(slaveId)) {
+                    queue.put(new Slave(position++, slaveId));
+                }
+            }
+        }
+    }
+
+    private void consume(BlockingQueue<Slave> queue) {
+        try {
+            for (Slave slave = queue.take(); slave != END; slave = queue.take()) {
+                SlaveReport report;
+                try {
+                    report = unreserveSlave(slave.id);
+                } catch (RuntimeException e) {
+                    report = new SlaveReport();
+                    report.lines.add("Janithor slave " + slave.id + " failed: " + e);
+                    report.unreserved = false;
+                }
+                finish(slave.position, report);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // prints the report and every following one that was waiting for it
+    private synchronized void finish(int position, SlaveReport report) {
+        finished.put(position, report);
+        for (SlaveReport next = finished.remove(printed); next != null; next = finished.remove(printed)) {
+            next.lines.forEach(output);
+            unreserved &= next.unreserved;
+            printed++;
+        }
+    }
+
+    private synchronized void finish(Throwable failure) {
+        output.accept("Janithor unreserve worker failed: " + failure);
+        unreserved = false;
+    }
+
+    // unreserves every resource of the role in a single slave, returning the lines to report
+    private SlaveReport unreserveSlave(String slaveId) {
+        SlaveReport report = new SlaveReport();
+        report.lines.add("Looking for resources on slave " + slaveId);
+        List<Resource> resources = mesos.findReservationsFor(role, slaveId);
+        if (resources == null) {
+            report.lines.add("Unable to find resources on slave " + slaveId);
+            report.unreserved = false;
+            return report;
+        }
+
+        int[] codes = mesos.unreserve(slaveId, resources);
+        for (int i = 0; i < resources.size(); i++) {
+            report.lines.add("Janithor " + resources.get(i) + ": " + codes[i]);
+            report.unreserved &= (codes[i] == HTTPUtils.HTTP_OK_CODE || codes[i] == HTTPUtils.UNRESERVE_OK_CODE);
+        }
+        return report;
+    }
+
+    private static class Slave {
+        private final int position;
+        private final String id;
+
+        Slave(int position, String id) {
+            this.position = position;
+            this.id = id;
+        }
+    }
+
+    // lines reported for a slave and whether all of its resources were unreserved
+    private static class SlaveReport {
+        private final List<String> lines = new ArrayList<>();
+        private boolean unreserved = true;
+    }
+}
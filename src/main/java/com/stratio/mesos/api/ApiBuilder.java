@@ -1,52 +1,44 @@
 package com.stratio.mesos.api;
 
-import java.lang.reflect.Constructor;
-import java.util.Arrays;
-
 /**
  * Created by alonso on 27/06/17.
  */
 public class ApiBuilder {
 
     public static <T> T build(String principal, String secret, String url, Class<T> client) {
-        Constructor<?> constructor = findSuitableConstructor(client, 3);
-        return instantiateClient(client, constructor, principal, secret, url);
+        Object api;
+        if (client == MesosApi.class) api = new MesosApi(principal, secret, url);
+        else if (client == MarathonApi.class) api = new MarathonApi(principal, secret, url);
+        else if (client == ExhibitorApi.class) api = new ExhibitorApi(principal, secret, url);
+        else api = null;
+        return checkClient(client, api);
     }
 
     public static <T> T build(String token, String url, Class<T> client) {
-        Constructor<?> constructor = findSuitableConstructor(client, 2);
-        return instantiateClient(client, constructor, token, url);
+        Object api;
+        if (client == MesosApi.class) api = new MesosApi(token, url);
+        else if (client == MarathonApi.class) api = new MarathonApi(token, url);
+        else if (client == ExhibitorApi.class) api = new ExhibitorApi(token, url);
+        else api = null;
+        return checkClient(client, api);
     }
 
     public static <T> T build(String url, Class<T> client) {
-        Constructor<?> constructor = findSuitableConstructor(client, 1);
-        return instantiateClient(client, constructor, url);
-    }
-
-    // find a constructor for the given client class with the specified argument number
-    private static Constructor<?> findSuitableConstructor(Class<?> client, int argNumber) {
-        Constructor<?>[] constructors = client.getDeclaredConstructors();
-        Constructor<?> constructor = Arrays.stream(constructors)
-                .filter(c -> c.getParameterCount() == argNumber)
-                .findFirst()
-                .orElse(null);
-        return constructor;
+        Object api;
+        if (client == MesosApi.class) api = new MesosApi(url);
+        else if (client == MarathonApi.class) api = new MarathonApi(url);
+        else if (client == ExhibitorApi.class) api = new ExhibitorApi(url);
+        else api = null;
+        return checkClient(client, api);
     }
 
-    // make an object out of a constructor with the arguments provided
-    private static <T> T instantiateClient(Class<T> client, Constructor<?> constructor, String... args) {
-        // return a new instance of the specified client
-        if (constructor!=null) {
-            try {
-                return (T) constructor.newInstance(args);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return null;
-            }
-        } else {
+    // clients are built directly, only the known API classes are supported
+    private static <T> T checkClient(Class<T> client, Object api) {
+        if (api == null) {
             System.out.println("No valid constructor found for client " + client.getCanonicalName());
             return null;
         }
+        return client.cast(api);
     }
 
 }
@@ -1,7 +1,10 @@
 package com.stratio.mesos.api;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.stratio.mesos.http.HTTPUtils;
 import com.stratio.mesos.http.ExhibitorInterface;
+import com.stratio.mesos.metrics.Metrics;
 import okhttp3.ResponseBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,13 +12,33 @@ import retrofit2.Call;
 import retrofit2.Response;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by alonso on 23/06/17.
  */
 public class ExhibitorApi {
     private static final Logger LOG = LoggerFactory.getLogger(ExhibitorApi.class);
-    
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // znodes listed or deleted at the same time when no parallelism is given
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    // top level znodes of zookeeper and the cluster itself, never deleted recursively
+    private static final Set<String> PROTECTED_ZNODES = new HashSet<>(Arrays.asList(
+            "zookeeper", "mesos", "marathon", "exhibitor", "dcos", "cosmos"));
+
     private ExhibitorInterface exhibitorInterface;
 
     public ExhibitorApi(String exhibitorUrl) {
@@ -36,15 +59,183 @@ public class ExhibitorApi {
      * @return
      */
     public boolean delete(String serviceName) {
-        Call<ResponseBody> mesosCall;
+        return Metrics.time("exhibitor", "delete", () -> {
+            Call<ResponseBody> mesosCall;
+            try {
+                mesosCall = exhibitorInterface.delete(serviceName);
+                Response<ResponseBody> response = mesosCall.execute();
+                LOG.info(response.message());
+                return (response.code() == HTTPUtils.HTTP_OK_CODE);
+            } catch (IOException e) {
+                LOG.info("Exhibitor failure with message " + e.getMessage());
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Removes a znode and everything below it. Children are listed through the explorer API and every znode is
+     * deleted once all of its children are gone, leaves first, so deep trees never reach exhibitor as a single
+     * recursive delete. Branches are listed and deleted concurrently, a znode whose children could not be listed
+     * is deleted directly, and a znode with a failed child is left in place
+     * @param znode znode name or path, such as dcos-service-kafka-sec
+     * @param parallelism exhibitor requests in flight
+     * @return deleted and failed znodes
+     * @throws IllegalArgumentException if the znode is not a service znode, see {@link #checkZnode(String)}
+     */
+    public DeleteReport deleteRecursively(String znode, int parallelism) {
+        String root = checkZnode(znode);
+        return Metrics.time("exhibitor", "delete_recursively", () -> {
+            DeleteReport report = new DeleteReport(root);
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+            long start = System.nanoTime();
+            try {
+                report.succeeded = deleteTree(root, executor, report).join();
+            } finally {
+                executor.shutdownNow();
+            }
+            report.elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            LOG.info(report.toString());
+            return report;
+        });
+    }
+
+    /**
+     * A recursive delete of the root or of a cluster znode would wipe zookeeper, so only service znodes are accepted
+     * @param znode znode name or path
+     * @return absolute path of the znode
+     * @throws IllegalArgumentException if the znode is blank, the root, has empty or relative segments,
+     * or is below a top level znode of the cluster such as /mesos, /marathon or /zookeeper
+     */
+    public static String checkZnode(String znode) {
+        if (znode == null || znode.trim().isEmpty()) {
+            throw new IllegalArgumentException("A znode is required");
+        }
+        String root = znode.startsWith("/") ? znode : "/" + znode;
+        String[] segments = root.substring(1).split("/", -1);
+        for (String segment : segments) {
+            if (segment.trim().isEmpty() || ".".equals(segment) || "..".equals(segment)) {
+                throw new IllegalArgumentException("Invalid znode " + znode);
+            }
+        }
+        if (PROTECTED_ZNODES.contains(segments[0])) {
+            throw new IllegalArgumentException("Znode " + znode + " belongs to the cluster and cannot be deleted");
+        }
+        return root;
+    }
+
+    // a znode is deleted as soon as its whole subtree is, while other branches are still being listed
+    private CompletableFuture<Boolean> deleteTree(String path, ExecutorService executor, DeleteReport report) {
+        return CompletableFuture.supplyAsync(() -> children(path, report), executor)
+                .thenCompose(children -> {
+                    List<CompletableFuture<Boolean>> subtrees = new ArrayList<>(children.size());
+                    children.forEach(child -> subtrees.add(deleteTree(child, executor, report)));
+                    return CompletableFuture.allOf(subtrees.toArray(new CompletableFuture[0]))
+                            .thenApply(ignored -> subtrees.stream().allMatch(CompletableFuture::join));
+                })
+                .thenApplyAsync(emptied -> emptied && deleteNode(path, report), executor);
+    }
+
+    private List<String> children(String path, DeleteReport report) {
+        List<String> children = new ArrayList<>();
         try {
-            mesosCall = exhibitorInterface.delete(serviceName);
-            Response<ResponseBody> response = mesosCall.execute();
-            LOG.info(response.message());
-            return (response.code() == HTTPUtils.HTTP_OK_CODE);
+            Response<ResponseBody> response = exhibitorInterface.children(path).execute();
+            try (ResponseBody body = response.body()) {
+                if (response.code() != HTTPUtils.HTTP_OK_CODE || body == null) {
+                    LOG.info("Unable to list znode {}, returned {}", path, response.code());
+                    report.unlisted.incrementAndGet();
+                    return children;
+                }
+
+                for (JsonNode child : MAPPER.readTree(body.byteStream())) {
+                    String key = child.path("key").asText("");
+                    String title = child.path("title").asText("");
+                    if (key.startsWith(path + "/")) {
+                        children.add(key);
+                    } else if (!title.isEmpty() && !key.isEmpty()) {
+                        children.add(("/".equals(path) ? "" : path) + "/" + title);
+                    }
+                }
+            }
         } catch (IOException e) {
-            LOG.info("Exhibitor failure with message " + e.getMessage());
-            return false;
+            LOG.info("Unable to list znode {} with message {}", path, e.getMessage());
+            report.unlisted.incrementAndGet();
+        }
+        return children;
+    }
+
+    private boolean deleteNode(String path, DeleteReport report) {
+        try {
+            Response<ResponseBody> response = exhibitorInterface.deletePath(encode(path)).execute();
+            if (response.body() != null) response.body().close();
+            if (response.code() == HTTPUtils.HTTP_OK_CODE) {
+                report.deleted.incrementAndGet();
+                return true;
+            }
+            LOG.info("Unable to delete znode {}, returned {}", path, response.code());
+        } catch (IOException e) {
+            LOG.info("Unable to delete znode {} with message {}", path, e.getMessage());
+        }
+        report.failed.incrementAndGet();
+        return false;
+    }
+
+    // every segment is encoded on its own, the slashes between them are kept
+    private static String encode(String path) throws UnsupportedEncodingException {
+        StringBuilder encoded = new StringBuilder();
+        for (String segment : path.substring(1).split("/")) {
+            if (encoded.length() > 0) encoded.append('/');
+            encoded.append(URLEncoder.encode(segment, "UTF-8").replace("+", "%20"));
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Outcome of a recursive delete
+     */
+    public static class DeleteReport {
+        private final String root;
+        private final AtomicInteger deleted = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger unlisted = new AtomicInteger();
+        private boolean succeeded;
+        private long elapsed;
+
+        DeleteReport(String root) {
+            this.root = root;
+        }
+
+        /**
+         * @return true if the root znode was deleted
+         */
+        public boolean isSucceeded() {
+            return succeeded;
+        }
+
+        public int getDeleted() {
+            return deleted.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return znodes whose children could not be listed
+         */
+        public int getUnlisted() {
+            return unlisted.get();
+        }
+
+        public long getElapsedMillis() {
+            return elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "Znode " + root + (succeeded ? " deleted" : " not deleted") + ": "
+                    + deleted.get() + " znodes deleted, " + failed.get() + " failed, "
+                    + unlisted.get() + " not listed in " + elapsed + " ms";
         }
     }
 }
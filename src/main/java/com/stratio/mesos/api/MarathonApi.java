@@ -1,8 +1,10 @@
 package com.stratio.mesos.api;
 
 import com.stratio.mesos.auth.SSOTokenResolver;
+import com.stratio.mesos.auth.TokenCache;
 import com.stratio.mesos.http.HTTPUtils;
 import com.stratio.mesos.http.MarathonInterface;
+import com.stratio.mesos.metrics.Metrics;
 import okhttp3.ResponseBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,6 +12,7 @@ import retrofit2.Call;
 import retrofit2.Response;
 
 import java.io.IOException;
+import java.util.Optional;
 
 /**
  * Created by alonso on 29/06/17.
@@ -19,6 +22,13 @@ public class MarathonApi {
 
     private MarathonInterface marathonInterface;
 
+    /**
+     * Outcome of an app destroy, an app that is not found was already destroyed by a previous run
+     */
+    public enum Destroyed {
+        DESTROYED, ABSENT, FAILED
+    }
+
     public MarathonApi(String mesosMasterUrl) {
         this.marathonInterface = HTTPUtils.buildBasicInterface(mesosMasterUrl, MarathonInterface.class);
     }
@@ -32,25 +42,40 @@ public class MarathonApi {
     }
 
     public boolean destroy(String serviceName) {
-        Call<ResponseBody> mesosCall;
-        try {
-            mesosCall = marathonInterface.destroy(serviceName);
-            return parseResponseBody(mesosCall);
-        } catch (IOException e) {
-            LOG.info("Marathon failure with message " + e.getMessage());
-            return false;
-        }
+        return destroyApp(serviceName) == Destroyed.DESTROYED;
+    }
+
+    /**
+     * Destroys the app, telling a missing app apart from a failure so that cleanups can be run again
+     * @param serviceName marathon app id
+     * @return DESTROYED on 200, ABSENT on 404, FAILED otherwise
+     */
+    public Destroyed destroyApp(String serviceName) {
+        return Metrics.time("marathon", "destroy", () -> {
+            try {
+                Response<ResponseBody> response = marathonInterface.destroy(serviceName).execute();
+                if (response.code() == HTTPUtils.HTTP_OK_CODE) return Destroyed.DESTROYED;
+                if (response.code() == HTTPUtils.HTTP_NOT_FOUND_CODE) return Destroyed.ABSENT;
+                LOG.info("Marathon destroy returned {}", response.code());
+                return Destroyed.FAILED;
+            } catch (IOException e) {
+                LOG.info("Marathon failure with message " + e.getMessage());
+                return Destroyed.FAILED;
+            }
+        });
     }
 
     public boolean destroy(String cookie, String serviceName) {
-        Call<ResponseBody> mesosCall;
-        try {
-            mesosCall = marathonInterface.destroy(cookie, serviceName);
-            return parseResponseBody(mesosCall);
-        } catch (IOException e) {
-            LOG.info("Marathon failure with message " + e.getMessage());
-            return false;
-        }
+        return Metrics.time("marathon", "destroy", () -> {
+            Call<ResponseBody> mesosCall;
+            try {
+                mesosCall = marathonInterface.destroy(cookie, serviceName);
+                return parseResponseBody(mesosCall);
+            } catch (IOException e) {
+                LOG.info("Marathon failure with message " + e.getMessage());
+                return false;
+            }
+        });
     }
 
     private boolean parseResponseBody(Call<ResponseBody> mesosCall) throws IOException {
@@ -59,18 +84,38 @@ public class MarathonApi {
     }
 
     public static String obtainToken(String user, String password, String ssoUrl) {
-        SSOTokenResolver authenticator = new SSOTokenResolver(
-                ssoUrl,
-                user,
-                password
-        );
-        boolean authenticated = authenticator.authenticate();
-
-        if (authenticated) {
-            String token = authenticator.getToken();
-            return token;
-        } else {
-            return null;
-        }
+        return obtainToken(user, password, ssoUrl, new TokenCache());
+    }
+
+    /**
+     * Returns a dc/os token for the user, reusing the cached one until shortly before it expires
+     * @param user sso user
+     * @param password sso password
+     * @param ssoUrl sso login url
+     * @param cache cache holding the tokens of previous logins
+     * @return token or null if the login failed
+     */
+    public static String obtainToken(String user, String password, String ssoUrl, TokenCache cache) {
+        return Metrics.time("marathon", "obtain_token", () -> {
+            Optional<String> cached = cache.get(ssoUrl, user);
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+
+            SSOTokenResolver authenticator = new SSOTokenResolver(
+                    ssoUrl,
+                    user,
+                    password
+            );
+            boolean authenticated = authenticator.authenticate();
+
+            if (authenticated) {
+                String token = authenticator.getToken();
+                cache.put(ssoUrl, user, token);
+                return token;
+            } else {
+                return null;
+            }
+        });
     }
 }
@@ -1,20 +1,34 @@
 package com.stratio.mesos.api;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.stratio.mesos.http.HTTPUtils;
 import com.stratio.mesos.http.MesosInterface;
-import net.thisptr.jackson.jq.JsonQuery;
+import com.stratio.mesos.metrics.Metrics;
+import com.stratio.mesos.state.ClusterSnapshot;
+import com.stratio.mesos.state.FrameworkIndex;
+import com.stratio.mesos.state.ReservationIndex;
+import com.stratio.mesos.state.Resource;
+import com.stratio.mesos.state.StateParser;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
+import org.apache.mesos.v1.master.Protos;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import retrofit2.Call;
 import retrofit2.Response;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Created by alonso on 20/06/17.
@@ -23,8 +37,16 @@ public class MesosApi {
     private static final Logger LOG = LoggerFactory.getLogger(MesosApi.class);
 
     private ObjectMapper MAPPER = new ObjectMapper();
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final MediaType PROTOBUF = MediaType.parse("application/x-protobuf");
+
     private String endpointsPrefix = EndpointPrefix.EMPTY.toString();
+    private ApiVersion apiVersion = ApiVersion.LEGACY;
+    private volatile boolean serverFilters = true;
+    private volatile boolean operatorProtobuf = true;
     private MesosInterface mesosInterface;
+    private final ClusterSnapshot snapshot = new ClusterSnapshot(
+            this::fetchFrameworks, this::fetchFrameworksAsync, this::fetchSlaves, this::fetchSlavesAsync);
 
     public enum EndpointPrefix {
         MASTER, MESOS, EMPTY;
@@ -40,6 +62,14 @@ public class MesosApi {
         }
     }
 
+    /**
+     * Master API used by every operation: the legacy JSON endpoints (/frameworks, /slaves, /unreserve...)
+     * or the v1 operator API (POST /api/v1)
+     */
+    public enum ApiVersion {
+        LEGACY, V1
+    }
+
     public MesosApi() {
     }
 
@@ -65,6 +95,47 @@ public class MesosApi {
 
     public boolean hasEndpointPrefix() { return !endpointsPrefix.isEmpty(); }
 
+    /**
+     * Enables the ?framework_id= and ?slave_id= filters of the master for lookups of a single framework or slave.
+     * They are enabled by default and disabled automatically on masters that ignore them
+     * @param serverFilters true to request single frameworks and slaves, false to always download whole documents
+     */
+    public void setServerFilters(boolean serverFilters) {
+        this.serverFilters = serverFilters;
+    }
+
+    /**
+     * v1 state calls are asked for protobuf first and fall back to JSON on their own when the master refuses it
+     * @param operatorProtobuf false to ask for JSON from the start
+     */
+    public void setOperatorProtobuf(boolean operatorProtobuf) {
+        this.operatorProtobuf = operatorProtobuf;
+    }
+
+    public void setApiVersion(ApiVersion apiVersion) {
+        this.apiVersion = apiVersion;
+        snapshot.refresh();
+    }
+
+    public ApiVersion getApiVersion() {
+        return apiVersion;
+    }
+
+    /**
+     * Returns the cluster state shared by every lookup. Endpoints are fetched once and then queried in memory
+     * @return the current snapshot
+     */
+    public ClusterSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Discards the cached cluster state, so the next lookup downloads it again from the master
+     */
+    public void refreshSnapshot() {
+        snapshot.refresh();
+    }
+
     /**
      * Finds a list of resources for a specific role inside a mesos slave
      * @param role mesos role
@@ -72,29 +143,65 @@ public class MesosApi {
      * @return List of JSON resources
      */
     public String[] findResourcesFor(String role, String slaveId) {
-        Call<ResponseBody> mesosCall;
+        return Metrics.time("mesos", "find_resources", () -> {
+            try {
+                return lookupResources(slavesFor(slaveId), role, slaveId);
+            } catch (IOException e) {
+                LOG.info("findResourcesFor failure with message " + e.getMessage());
+                return null;
+            }
+        });
+    }
 
-        try {
-            if (!hasEndpointPrefix()) mesosCall = mesosInterface.findResources();
-            else mesosCall = mesosInterface.findResources(getEndpointsPrefix());
+    /**
+     * Asynchronous version of {@link #findResourcesFor(String, String)}
+     * @param role mesos role
+     * @param slaveId mesos slave id
+     * @return future list of JSON resources, completed with null on failure
+     */
+    public CompletableFuture<String[]> findResourcesForAsync(String role, String slaveId) {
+        return Metrics.timeAsync("mesos", "find_resources", () -> slavesForAsync(slaveId)
+                .thenApply(reservations -> lookupResources(reservations, role, slaveId))
+                .exceptionally(e -> {
+                    LOG.info("findResourcesFor failure with message " + unwrap(e).getMessage());
+                    return null;
+                }));
+    }
 
-            Response<ResponseBody> response = mesosCall.clone().execute();
-            LOG.info("findResourcesFor " + response.message());
-            if (response.code() == HTTPUtils.HTTP_OK_CODE) {
-                JsonQuery q = JsonQuery.compile(".slaves[]|.id=\""+slaveId+"\"|.reserved_resources_full.\""+role+"\"[]?");
-                JsonNode in = MAPPER.readTree(new String(response.body().bytes()));
-                List<JsonNode> resources = q.apply(in);
+    private String[] lookupResources(ReservationIndex reservations, String role, String slaveId) {
+        List<Resource> resources = lookupReservations(reservations, role, slaveId);
+        if (resources != null) {
+            return resources.stream()
+                    .map(Resource::toString)
+                    .toArray(String[]::new);
+        } else {
+            return null;
+        }
+    }
 
-                return resources.stream()
-                        .map(resource->resource.toString())
-                        .toArray(String[]::new);
-            } else {
-                LOG.info("Error to try fetch resources for cluster " + response.code() + " and message: " + response.errorBody());
+    /**
+     * Finds the resources reserved for a role inside a mesos slave, ready to be unreserved with
+     * {@link #unreserve(String, List)} without going through their JSON again
+     * @param role mesos role
+     * @param slaveId mesos slave id
+     * @return reserved resources, null if the slave state could not be fetched
+     */
+    public List<Resource> findReservationsFor(String role, String slaveId) {
+        return Metrics.time("mesos", "find_reservations", () -> {
+            try {
+                return lookupReservations(slavesFor(slaveId), role, slaveId);
+            } catch (IOException e) {
+                LOG.info("findReservationsFor failure with message " + e.getMessage());
                 return null;
             }
+        });
+    }
 
-        } catch (IOException e) {
-            LOG.info("findResourcesFor failure with message " + e.getMessage());
+    private List<Resource> lookupReservations(ReservationIndex reservations, String role, String slaveId) {
+        if (reservations != null) {
+            return reservations.findReservations(slaveId, role);
+        } else {
+            LOG.info("Error to try fetch resources for slave " + slaveId);
             return null;
         }
     }
@@ -107,34 +214,229 @@ public class MesosApi {
      * @return mesos http return code
      */
     public int unreserveResourceFor(String slaveId, String resourceJson) {
-        int code = -1;
-        if (resourceJson==null || slaveId==null || resourceJson.isEmpty() || slaveId.isEmpty()) {
-            LOG.error("Parameters 'slaveId' and 'resourceJson' cannot be empty or null");
-            return code;
+        return Metrics.time("mesos", "unreserve_resource", () -> {
+            int code = -1;
+            if (resourceJson==null || slaveId==null || resourceJson.isEmpty() || slaveId.isEmpty()) {
+                LOG.error("Parameters 'slaveId' and 'resourceJson' cannot be empty or null");
+                return code;
+            }
+
+            Call<ResponseBody> mesosCall;
+
+            try {
+                Resource resource = Resource.parse(resourceJson);
+                // non-disk resources
+                if (!resource.isVolume()) {
+                    mesosCall = unreserveCall(slaveId, Collections.singletonList(resource));
+
+                    Response<ResponseBody> execute = mesosCall.clone().execute();
+                    code = execute.code();
+                    LOG.info("Unregister standard resource returned {}", code);
+                } else {
+                    code = unreserveVolume(slaveId, resource);
+                    LOG.info("Unregister volume resource returned {}", code);
+                }
+
+                return code;
+            } catch (Exception e) {
+                LOG.info("unreserveResourceFor failure with message " + e.getMessage());
+                return -1;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #unreserveResourceFor(String, String)}
+     * @param slaveId mesos slave id
+     * @param resourceJson exact resource JSON
+     * @return future mesos http return code, -1 on failure
+     */
+    public CompletableFuture<Integer> unreserveResourceForAsync(String slaveId, String resourceJson) {
+        return Metrics.timeAsync("mesos", "unreserve_resource", () -> {
+            if (resourceJson==null || slaveId==null || resourceJson.isEmpty() || slaveId.isEmpty()) {
+                LOG.error("Parameters 'slaveId' and 'resourceJson' cannot be empty or null");
+                return CompletableFuture.completedFuture(-1);
+            }
+
+            Resource resource;
+            Call<ResponseBody> call;
+            try {
+                resource = Resource.parse(resourceJson);
+                if (resource.isVolume()) {
+                    return unreserveVolumeAsync(slaveId, resource);
+                }
+                call = unreserveCall(slaveId, Collections.singletonList(resource));
+            } catch (IOException e) {
+                LOG.info("unreserveResourceFor failure with message " + e.getMessage());
+                return CompletableFuture.completedFuture(-1);
+            }
+
+            return HTTPUtils.enqueue(call.clone())
+                    .thenApply(response -> {
+                        LOG.info("Unregister standard resource returned {}", response.code());
+                        return response.code();
+                    })
+                    .exceptionally(e -> {
+                        LOG.info("unreserveResourceFor failure with message " + unwrap(e).getMessage());
+                        return -1;
+                    });
+        });
+    }
+
+    /**
+     * Unreserves several resources of a slave with a single request, since mesos accepts a list of resources per slave.
+     * Persistent volumes are destroyed and unreserved together in a separate batch. If mesos rejects the batch with
+     * 409 - Conflict, it is split in halves and retried so only the offending resources fail
+     * @param slaveId mesos slave id
+     * @param resourceJsons exact resource JSONs
+     * @return mesos http return code for every resource, in the same order as resourceJsons
+     */
+    public int[] unreserveResourcesFor(String slaveId, List<String> resourceJsons) {
+        if (resourceJsons==null) {
+            return unreserve(slaveId, null);
         }
+        return unreserve(slaveId, parse(resourceJsons));
+    }
 
-        Call<ResponseBody> mesosCall;
+    /**
+     * Unreserves several resources of a slave with a single request, as {@link #unreserveResourcesFor(String, List)}
+     * does, writing the resources found by {@link #findReservationsFor(String, String)} straight into the request
+     * @param slaveId mesos slave id
+     * @param resources reserved resources, null entries are answered with -1
+     * @return mesos http return code for every resource, in the same order as resources
+     */
+    public int[] unreserve(String slaveId, List<Resource> resources) {
+        return Metrics.time("mesos", "unreserve_resources", () -> {
+            if (resources==null || slaveId==null || slaveId.isEmpty()) {
+                LOG.error("Parameters 'slaveId' and 'resources' cannot be empty or null");
+                return new int[0];
+            }
 
-        try {
-            // non-disk resources
-            if (!resourceJson.toLowerCase().replace(" ", "").contains("\"disk\":{\"persistence\"")) {
+            int[] codes = new int[resources.size()];
+            List<Integer> standard = new ArrayList<>();
+            List<Integer> volumes = new ArrayList<>();
+            for (int i = 0; i < resources.size(); i++) {
+                Resource resource = resources.get(i);
+                if (resource==null) {
+                    codes[i] = -1;
+                } else if (resource.isVolume()) {
+                    volumes.add(i);
+                } else {
+                    standard.add(i);
+                }
+            }
+
+            unreserveBatch(slaveId, resources, standard, codes);
 
-                if (!hasEndpointPrefix()) mesosCall = mesosInterface.unreserve(slaveId, "[" + resourceJson + "]");
-                else mesosCall = mesosInterface.unreserve(getEndpointsPrefix(), slaveId, "[" + resourceJson + "]");
+            if (!volumes.isEmpty()) {
+                List<Resource> volumeResources = new ArrayList<>(volumes.size());
+                volumes.forEach(position -> volumeResources.add(resources.get(position)));
+                int[] volumeCodes = destroyAndUnreserveVolumes(slaveId, volumeResources);
+                for (int i = 0; i < volumes.size(); i++) {
+                    codes[volumes.get(i)] = volumeCodes[i];
+                }
+            }
+            return codes;
+        });
+    }
 
-                Response<ResponseBody> execute = mesosCall.clone().execute();
-                code = execute.code();
-                LOG.info("Unregister standard resource returned {}", code);
+    /**
+     * Destroys several persistent volumes of a slave with a single destroy-volumes request and then unreserves
+     * all of them, without their disk info, with a single unreserve request.
+     * If mesos rejects the destroy-volumes batch with 409 - Conflict, every volume is handled on its own
+     * @param slaveId mesos slave id
+     * @param volumeJsons exact disk resource JSONs
+     * @return mesos http return code for every volume, in the same order as volumeJsons
+     */
+    public int[] destroyAndUnreserveVolumesFor(String slaveId, List<String> volumeJsons) {
+        if (volumeJsons==null) {
+            return destroyAndUnreserveVolumes(slaveId, null);
+        }
+        return destroyAndUnreserveVolumes(slaveId, parse(volumeJsons));
+    }
+
+    /**
+     * Typed version of {@link #destroyAndUnreserveVolumesFor(String, List)}
+     * @param slaveId mesos slave id
+     * @param volumes persistent volumes, null entries are answered with -1
+     * @return mesos http return code for every volume, in the same order as volumes
+     */
+    public int[] destroyAndUnreserveVolumes(String slaveId, List<Resource> volumes) {
+        return Metrics.time("mesos", "destroy_and_unreserve_volumes", () -> {
+            if (volumes==null || slaveId==null || slaveId.isEmpty()) {
+                LOG.error("Parameters 'slaveId' and 'volumes' cannot be empty or null");
+                return new int[0];
+            }
+
+            int[] codes = new int[volumes.size()];
+            List<Integer> positions = new ArrayList<>(volumes.size());
+            for (int i = 0; i < volumes.size(); i++) {
+                if (volumes.get(i) == null) {
+                    LOG.error("Unable to read volume on slave {}", slaveId);
+                    codes[i] = -1;
+                } else {
+                    positions.add(i);
+                }
+            }
+            if (positions.isEmpty()) return codes;
+
+            List<Resource> destroyed = new ArrayList<>(positions.size());
+            positions.forEach(position -> destroyed.add(volumes.get(position)));
+
+            int code;
+            try {
+                code = destroyVolumesCall(slaveId, destroyed).clone().execute().code();
+                LOG.info("Destroy {} volumes returned {}", destroyed.size(), code);
+            } catch (IOException e) {
+                LOG.info("destroyAndUnreserveVolumesFor failure with message " + e.getMessage());
+                code = -1;
+            }
+
+            if (code == HTTPUtils.UNRESERVE_OK_CODE) {
+                // remove "disk" from every volume before unregistering the resources
+                List<Resource> plain = new ArrayList<>(volumes.size());
+                volumes.forEach(volume -> plain.add(volume != null ? volume.withoutDisk() : null));
+                unreserveBatch(slaveId, plain, positions, codes);
+            } else if (code == HTTPUtils.CONFLICT_CODE && positions.size() > 1) {
+                Metrics.retry("destroy_volumes", "conflict");
+                for (int position : positions) {
+                    codes[position] = unreserveVolume(slaveId, volumes.get(position));
+                }
             } else {
-                code = unreserveVolumesFor(slaveId, resourceJson);
-                LOG.info("Unregister volume resource returned {}", code);
+                LOG.error("Unable to destroy volumes on slave {}", slaveId);
+                for (int position : positions) {
+                    codes[position] = code;
+                }
             }
+            return codes;
+        });
+    }
 
-            System.out.println(code);
-            return code;
-        } catch (Exception e) {
-            LOG.info("unreserveResourceFor failure with message " + e.getMessage());
-            return -1;
+    // unreserves the resources at the given positions, halving the batch while mesos answers 409 - Conflict
+    private void unreserveBatch(String slaveId, List<Resource> resources, List<Integer> positions, int[] codes) {
+        if (positions.isEmpty()) return;
+
+        List<Resource> batch = new ArrayList<>(positions.size());
+        positions.forEach(position -> batch.add(resources.get(position)));
+
+        int code;
+        try {
+            code = unreserveCall(slaveId, batch).clone().execute().code();
+            LOG.info("Unregister {} standard resources returned {}", positions.size(), code);
+        } catch (IOException e) {
+            LOG.info("unreserveResourcesFor failure with message " + e.getMessage());
+            code = -1;
+        }
+
+        if (code == HTTPUtils.CONFLICT_CODE && positions.size() > 1) {
+            Metrics.retry("unreserve", "conflict");
+            int half = positions.size() / 2;
+            unreserveBatch(slaveId, resources, positions.subList(0, half), codes);
+            unreserveBatch(slaveId, resources, positions.subList(half, positions.size()), codes);
+        } else {
+            for (int position : positions) {
+                codes[position] = code;
+            }
         }
     }
 
@@ -146,27 +448,34 @@ public class MesosApi {
      * @return mesos http return code
      */
     public int unreserveVolumesFor(String slaveId, String resourceJson) {
-        if (resourceJson==null || slaveId==null || resourceJson.isEmpty() || slaveId.isEmpty()) {
-            LOG.error("Parameters 'slaveId' and 'resourceJson' cannot be empty or null");
-            return -1;
-        }
+        return Metrics.time("mesos", "unreserve_volumes", () -> {
+            if (resourceJson==null || slaveId==null || resourceJson.isEmpty() || slaveId.isEmpty()) {
+                LOG.error("Parameters 'slaveId' and 'resourceJson' cannot be empty or null");
+                return -1;
+            }
 
+            try {
+                return unreserveVolume(slaveId, Resource.parse(resourceJson));
+            } catch (IOException e) {
+                LOG.info("unreserveVolumesFor failure with message " + e.getMessage());
+                return -1;
+            }
+        });
+    }
+
+    // destroys a single volume and unreserves it without "disk"
+    private int unreserveVolume(String slaveId, Resource volume) {
         Call<ResponseBody> mesosCall;
         Response<ResponseBody> response;
 
         try {
             // destroy the volume
-            if (!hasEndpointPrefix()) mesosCall = mesosInterface.destroyVolumes(slaveId, "[" + resourceJson + "]");
-            else mesosCall = mesosInterface.destroyVolumes(getEndpointsPrefix(), slaveId, "[" + resourceJson + "]");
+            mesosCall = destroyVolumesCall(slaveId, Collections.singletonList(volume));
             response = mesosCall.clone().execute();
             LOG.info("unreserveVolumesFor " + response.message());
             if (response.code() == HTTPUtils.UNRESERVE_OK_CODE) {
-                // remove "disk" from JSON before unregistering resource
-                HashMap<String,Object> result = MAPPER.readValue(resourceJson, HashMap.class);
-                result.remove("disk");
-
-                // unreserve the resource
-                mesosCall = mesosInterface.unreserve(slaveId, "[" + MAPPER.writeValueAsString(result) + "]");
+                // unreserve the resource, without "disk"
+                mesosCall = unreserveCall(slaveId, Collections.singletonList(volume.withoutDisk()));
                 response = mesosCall.clone().execute();
             } else {
                 LOG.error("Unable to destroy volume, resource ");
@@ -178,28 +487,95 @@ public class MesosApi {
         }
     }
 
+    /**
+     * Asynchronous version of {@link #unreserveVolumesFor(String, String)}
+     * @param slaveId mesos slave id
+     * @param resourceJson disk resource json
+     * @return future mesos http return code, -1 on failure
+     */
+    public CompletableFuture<Integer> unreserveVolumesForAsync(String slaveId, String resourceJson) {
+        return Metrics.timeAsync("mesos", "unreserve_volumes", () -> {
+            if (resourceJson==null || slaveId==null || resourceJson.isEmpty() || slaveId.isEmpty()) {
+                LOG.error("Parameters 'slaveId' and 'resourceJson' cannot be empty or null");
+                return CompletableFuture.completedFuture(-1);
+            }
+
+            try {
+                return unreserveVolumeAsync(slaveId, Resource.parse(resourceJson));
+            } catch (IOException e) {
+                LOG.info("unreserveVolumesFor failure with message " + e.getMessage());
+                return CompletableFuture.completedFuture(-1);
+            }
+        });
+    }
+
+    private CompletableFuture<Integer> unreserveVolumeAsync(String slaveId, Resource volume) throws IOException {
+        return HTTPUtils.enqueue(destroyVolumesCall(slaveId, Collections.singletonList(volume)).clone())
+                .thenCompose(response -> {
+                    LOG.info("unreserveVolumesFor " + response.message());
+                    if (response.code() != HTTPUtils.UNRESERVE_OK_CODE) {
+                        LOG.error("Unable to destroy volume, resource ");
+                        return CompletableFuture.completedFuture(response.code());
+                    }
+
+                    try {
+                        return HTTPUtils.enqueue(unreserveCall(slaveId, Collections.singletonList(volume.withoutDisk())).clone())
+                                .thenApply(Response::code);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                })
+                .exceptionally(e -> {
+                    LOG.info("unreserveVolumesFor failure with message " + unwrap(e).getMessage());
+                    return -1;
+                });
+    }
+
     /**
      * Performs a teardown of the specified frameworkId. A teardown <b>does not</b> imply cleaning zookeeper configuration
      * @param frameworkId
      * @return
      */
     public boolean teardown(String frameworkId) {
-        if (frameworkId==null || frameworkId.isEmpty()) {
-            LOG.error("Parameter 'frameworkId' cannot be null or empty");
-            return false;
-        }
+        return Metrics.time("mesos", "teardown", () -> {
+            if (frameworkId==null || frameworkId.isEmpty()) {
+                LOG.error("Parameter 'frameworkId' cannot be null or empty");
+                return false;
+            }
 
-        Call<ResponseBody> mesosCall;
-        try {
-            if (!hasEndpointPrefix()) mesosCall = mesosInterface.teardown(frameworkId);
-            else mesosCall = mesosInterface.teardown(getEndpointsPrefix(), frameworkId);
-            Response<ResponseBody> response = mesosCall.clone().execute();
-            LOG.info("teardown " + response.message());
-            return (response.code() == HTTPUtils.HTTP_OK_CODE);
-        } catch (IOException e) {
-            LOG.info("teardown failure with message " + e.getMessage());
-            return false;
-        }
+            try {
+                return isTornDown(teardownCall(frameworkId).clone().execute());
+            } catch (IOException e) {
+                LOG.info("teardown failure with message " + e.getMessage());
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #teardown(String)}
+     * @param frameworkId framework to tear down
+     * @return future teardown result
+     */
+    public CompletableFuture<Boolean> teardownAsync(String frameworkId) {
+        return Metrics.timeAsync("mesos", "teardown", () -> {
+            if (frameworkId==null || frameworkId.isEmpty()) {
+                LOG.error("Parameter 'frameworkId' cannot be null or empty");
+                return CompletableFuture.completedFuture(false);
+            }
+
+            return HTTPUtils.enqueue(teardownCall(frameworkId).clone())
+                    .thenApply(this::isTornDown)
+                    .exceptionally(e -> {
+                        LOG.info("teardown failure with message " + unwrap(e).getMessage());
+                        return false;
+                    });
+        });
+    }
+
+    private boolean isTornDown(Response<ResponseBody> response) {
+        LOG.info("teardown " + response.message());
+        return (response.code() == HTTPUtils.HTTP_OK_CODE);
     }
 
     /**
@@ -223,46 +599,64 @@ public class MesosApi {
      * @return An optional list of framework ids
      */
     public Optional<String[]> findFrameworkId(String serviceName, String role, String principal, boolean active) {
-        Call<ResponseBody> mesosCall;
+        return Metrics.time("mesos", "find_framework_id", () -> {
+            try {
+                return lookupFrameworkIds(snapshot.getFrameworks(), serviceName, role, principal, active);
+            } catch (Exception e) {
+                LOG.info("findFrameworkId failure with message " + e.getMessage());
+                return Optional.empty();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #findFrameworkId(String, String, String)}
+     * @param serviceName mesos service name
+     * @param role mesos role
+     * @param principal mesos principal
+     * @return future optional list of framework ids
+     */
+    public CompletableFuture<Optional<String[]>> findFrameworkIdAsync(String serviceName, String role, String principal) {
+        return findFrameworkIdAsync(serviceName, role, principal, true);
+    }
+
+    /**
+     * Asynchronous version of {@link #findFrameworkId(String, String, String, boolean)}
+     * @param serviceName mesos service name
+     * @param role mesos role
+     * @param principal mesos principal
+     * @param active filter by active/inactive frameworks
+     * @return future optional list of framework ids
+     */
+    public CompletableFuture<Optional<String[]>> findFrameworkIdAsync(String serviceName, String role, String principal, boolean active) {
+        return Metrics.timeAsync("mesos", "find_framework_id", () -> snapshot.getFrameworksAsync()
+                .thenApply(frameworks -> lookupFrameworkIds(frameworks, serviceName, role, principal, active))
+                .exceptionally(e -> {
+                    LOG.info("findFrameworkId failure with message " + unwrap(e).getMessage());
+                    return Optional.empty();
+                }));
+    }
+
+    private Optional<String[]> lookupFrameworkIds(FrameworkIndex frameworks, String serviceName, String role, String principal, boolean active) {
         Optional<String[]> frameworkId = Optional.empty();
 
-        try {
-            if (!hasEndpointPrefix()) mesosCall = mesosInterface.findFrameworks();
-            else mesosCall = mesosInterface.findFrameworks(getEndpointsPrefix());
+        if (frameworks != null) {
+            List<String> ids = frameworks.findFrameworkIds(serviceName, role, principal, active);
 
-            Response<ResponseBody> response = mesosCall.clone().execute();
-            LOG.info("findFrameworkId " + response.message());
-            if (response.code() == HTTPUtils.HTTP_OK_CODE) {
-                String includeInactives = active?" and .active==true":" and .active==false";
-                JsonQuery q = JsonQuery.compile(".frameworks[]|select(.name == \"" + serviceName + "\" and .role == \"" + role + "\" and .principal == \"" + principal + "\""+includeInactives+").id");
-                JsonNode in = MAPPER.readTree(new String(response.body().bytes()));
-                List<JsonNode> json = q.apply(in);
-
-                // might be a completed framework
-                if (json.isEmpty()) {
-                    q = JsonQuery.compile(".completed_frameworks[]|select(.name == \"" + serviceName + "\" and .role == \"" + role + "\" and .principal == \"" + principal + "\").id");
-                    json = q.apply(in);
-                }
+            // might be a completed framework
+            if (ids.isEmpty()) {
+                ids = frameworks.findCompletedFrameworkIds(serviceName, role, principal);
+            }
 
-                if (json.size()>0) {
-                    frameworkId = Optional.of(json.stream()
-                            .map(fwId -> fwId.toString().replace("\"", ""))
-                            .toArray(String[]::new)
-                    );
-                } else if (json.size()==0) {
-                    LOG.error("No frameworks found for ({}, {}, {})", serviceName, role, principal);
-                } else {
-                    LOG.error("Several frameworks found for the same ({}, {}, {})", serviceName, role, principal);
-                }
+            if (ids.size()>0) {
+                frameworkId = Optional.of(ids.toArray(new String[ids.size()]));
             } else {
-                LOG.info("Error finding framework ("+serviceName+","+role+","+principal+"): " + response
-                        .code() + " and message: " + response.errorBody());
+                LOG.error("No frameworks found for ({}, {}, {})", serviceName, role, principal);
             }
-        } catch (Exception e) {
-            LOG.info("findFrameworkId failure with message " + e.getMessage());
-        } finally {
-            return frameworkId;
+        } else {
+            LOG.info("Error finding framework ("+serviceName+","+role+","+principal+")");
         }
+        return frameworkId;
     }
 
     /**
@@ -271,39 +665,392 @@ public class MesosApi {
      * @return Optional list of slaveIds
      */
     public Optional<String[]> findSlavesForFramework(String frameworkId) {
-        Call<ResponseBody> mesosCall;
-        Optional<String[]> slaveIds = Optional.empty();
+        return Metrics.time("mesos", "find_slaves_for_framework", () -> {
+            try {
+                return lookupSlaves(frameworksFor(frameworkId), frameworkId);
+            } catch (Exception e) {
+                LOG.info("findSlavesForFramework failure with message " + e.getMessage());
+                return Optional.empty();
+            }
+        });
+    }
 
-        try {
-            if (!hasEndpointPrefix()) mesosCall = mesosInterface.findFrameworks();
-            else mesosCall = mesosInterface.findFrameworks(getEndpointsPrefix());
+    /**
+     * Asynchronous version of {@link #findSlavesForFramework(String)}
+     * @param frameworkId framework to locate inside the mesos slaves
+     * @return future optional list of slaveIds
+     */
+    public CompletableFuture<Optional<String[]>> findSlavesForFrameworkAsync(String frameworkId) {
+        return Metrics.timeAsync("mesos", "find_slaves_for_framework", () -> frameworksForAsync(frameworkId)
+                .thenApply(frameworks -> lookupSlaves(frameworks, frameworkId))
+                .exceptionally(e -> {
+                    LOG.info("findSlavesForFramework failure with message " + unwrap(e).getMessage());
+                    return Optional.empty();
+                }));
+    }
 
-            Response<ResponseBody> response = mesosCall.clone().execute();
-            LOG.info("findSlavesForFramework " + response.message());
-            if (response.code() == HTTPUtils.HTTP_OK_CODE) {
-                JsonQuery q = JsonQuery.compile(".frameworks[]|select(.id==\""+frameworkId+"\").tasks[].slave_id");
-                JsonNode in = MAPPER.readTree(new String(response.body().bytes()));
-                List<JsonNode> slaves = q.apply(in);
-
-                // might be a completed framework
-                if (slaves.isEmpty()) {
-                    q = JsonQuery.compile(".completed_frameworks[]|select(.id==\""+frameworkId+"\").completed_tasks[].slave_id");
-                    slaves = q.apply(in);
+    private Optional<String[]> lookupSlaves(FrameworkIndex frameworks, String frameworkId) {
+        if (frameworks != null) {
+            Set<String> slaves = frameworks.findAgents(frameworkId);
+
+            // might be a completed framework
+            if (slaves.isEmpty()) {
+                slaves = frameworks.findCompletedAgents(frameworkId);
+            }
+
+            return Optional.of(slaves.toArray(new String[slaves.size()]));
+        } else {
+            LOG.info("Error finding slaves for framework ({})", frameworkId);
+            return Optional.empty();
+        }
+    }
+
+    // streams the /frameworks document from the master and indexes the fields used by the lookups
+    private FrameworkIndex fetchFrameworks() throws IOException {
+        if (apiVersion == ApiVersion.V1) {
+            // both responses are streamed, the first one is closed if the second call fails
+            Response<ResponseBody> frameworks = executeOperatorState(Protos.Call.Type.GET_FRAMEWORKS);
+            try {
+                return parseOperatorFrameworks(frameworks, executeOperatorState(Protos.Call.Type.GET_TASKS));
+            } finally {
+                closeQuietly(frameworks);
+            }
+        }
+        return parseFrameworks(frameworksCall().clone().execute());
+    }
+
+    private CompletableFuture<FrameworkIndex> fetchFrameworksAsync() {
+        if (apiVersion == ApiVersion.V1) {
+            CompletableFuture<Response<ResponseBody>> frameworks = enqueueOperatorState(Protos.Call.Type.GET_FRAMEWORKS);
+            CompletableFuture<Response<ResponseBody>> tasks = enqueueOperatorState(Protos.Call.Type.GET_TASKS);
+            CompletableFuture<FrameworkIndex> index = frameworks.thenCombine(tasks, (frameworksResponse, tasksResponse) -> {
+                try {
+                    return parseOperatorFrameworks(frameworksResponse, tasksResponse);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+            // when one call fails the other response never reaches the parser, it is closed here
+            index.whenComplete((result, e) -> {
+                if (e != null) {
+                    frameworks.thenAccept(MesosApi::closeQuietly);
+                    tasks.thenAccept(MesosApi::closeQuietly);
                 }
+            });
+            return index;
+        }
+        return HTTPUtils.enqueue(frameworksCall().clone()).thenApply(response -> {
+            try {
+                return parseFrameworks(response);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private Call<ResponseBody> frameworksCall() {
+        if (!hasEndpointPrefix()) return mesosInterface.findFrameworks();
+        else return mesosInterface.findFrameworks(getEndpointsPrefix());
+    }
+
+    // a single framework is requested with ?framework_id= unless the whole document is already at hand,
+    // and kept in the snapshot so the same id is requested once per run
+    private FrameworkIndex frameworksFor(String frameworkId) throws IOException {
+        if (frameworkId == null || !useServerFilters() || snapshot.hasFrameworks()) {
+            return snapshot.getFrameworks();
+        }
+
+        FrameworkIndex frameworks = snapshot.getFramework(frameworkId,
+                () -> filteredFrameworks(parseFrameworks(frameworkCall(frameworkId).clone().execute()), frameworkId));
+        return frameworks != null ? frameworks : snapshot.getFrameworks();
+    }
 
-                slaveIds = Optional.of(slaves.stream()
-                        .map(slave->slave.toString().replace("\"", ""))
-                        .toArray(String[]::new));
+    private CompletableFuture<FrameworkIndex> frameworksForAsync(String frameworkId) {
+        if (frameworkId == null || !useServerFilters() || snapshot.hasFrameworks()) {
+            return snapshot.getFrameworksAsync();
+        }
+
+        return snapshot.getFrameworkAsync(frameworkId, () -> HTTPUtils.enqueue(frameworkCall(frameworkId).clone()).thenApply(response -> {
+            try {
+                return filteredFrameworks(parseFrameworks(response), frameworkId);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        })).thenCompose(frameworks -> frameworks != null ? CompletableFuture.completedFuture(frameworks) : snapshot.getFrameworksAsync());
+    }
+
+    // masters that ignore or reject the filter answer with every framework or with an error; filters are then disabled
+    private FrameworkIndex filteredFrameworks(FrameworkIndex frameworks, String frameworkId) {
+        if (frameworks == null) {
+            LOG.info("framework_id filter rejected, falling back to the whole /frameworks document");
+            Metrics.retry("frameworks", "filter_rejected");
+            serverFilters = false;
+            return null;
+        }
+        if (frameworks.getFrameworks().stream().anyMatch(framework -> !framework.getId().equals(frameworkId))) {
+            LOG.info("framework_id filter ignored by the master, falling back to the whole /frameworks document");
+            serverFilters = false;
+            snapshot.putFrameworks(frameworks);
+        }
+        return frameworks;
+    }
+
+    private Call<ResponseBody> frameworkCall(String frameworkId) {
+        if (!hasEndpointPrefix()) return mesosInterface.findFramework(frameworkId);
+        else return mesosInterface.findFrameworks(getEndpointsPrefix(), frameworkId);
+    }
+
+    private FrameworkIndex parseFrameworks(Response<ResponseBody> response) throws IOException {
+        LOG.info("fetchFrameworks " + response.message());
+        try (ResponseBody body = response.body()) {
+            if (response.code() == HTTPUtils.HTTP_OK_CODE) {
+                return FrameworkIndex.from(StateParser.parseFrameworks(body.byteStream()));
             } else {
-                LOG.info("Error finding slaves for framework ({}) returned {} - {}", frameworkId, response.code(), response.errorBody());
+                LOG.info("Error fetching frameworks returned {} - {}", response.code(), response.errorBody());
+                return null;
             }
-        } catch (Exception e) {
-            LOG.info("findSlavesForFramework failure with message " + e.getMessage());
-        } finally {
-            return slaveIds;
         }
     }
 
+    // GET_FRAMEWORKS has no tasks, the agents of every framework come from GET_TASKS
+    private FrameworkIndex parseOperatorFrameworks(Response<ResponseBody> frameworks, Response<ResponseBody> tasks) throws IOException {
+        LOG.info("fetchFrameworks " + frameworks.message() + ", " + tasks.message());
+        try (ResponseBody frameworksBody = frameworks.body(); ResponseBody tasksBody = tasks.body()) {
+            if (frameworks.code() == HTTPUtils.HTTP_OK_CODE && tasks.code() == HTTPUtils.HTTP_OK_CODE) {
+                boolean protobuf = isProtobuf(frameworksBody);
+                if (protobuf != isProtobuf(tasksBody)) {
+                    throw new IOException("GET_FRAMEWORKS and GET_TASKS answered with different encodings");
+                }
+                return FrameworkIndex.from(protobuf
+                        ? StateParser.parseOperatorFrameworksProtobuf(frameworksBody.byteStream(), tasksBody.byteStream())
+                        : StateParser.parseOperatorFrameworks(frameworksBody.byteStream(), tasksBody.byteStream()));
+            } else {
+                LOG.info("Error fetching frameworks returned {}/{}", frameworks.code(), tasks.code());
+                return null;
+            }
+        }
+    }
+
+    // streams the /slaves document from the master and indexes the reservations of every slave
+    private ReservationIndex fetchSlaves() throws IOException {
+        if (apiVersion == ApiVersion.V1) {
+            return parseSlaves(executeOperatorState(Protos.Call.Type.GET_AGENTS));
+        }
+        return parseSlaves(slavesCall().clone().execute());
+    }
+
+    private CompletableFuture<ReservationIndex> fetchSlavesAsync() {
+        CompletableFuture<Response<ResponseBody>> slaves = apiVersion == ApiVersion.V1
+                ? enqueueOperatorState(Protos.Call.Type.GET_AGENTS)
+                : HTTPUtils.enqueue(slavesCall().clone());
+        return slaves.thenApply(response -> {
+            try {
+                return parseSlaves(response);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    // a single slave is requested with ?slave_id= unless the whole document is already at hand,
+    // and kept in the snapshot so the same id is requested once per run
+    private ReservationIndex slavesFor(String slaveId) throws IOException {
+        if (slaveId == null || !useServerFilters() || snapshot.hasSlaves()) {
+            return snapshot.getSlaves();
+        }
+
+        ReservationIndex slaves = snapshot.getSlave(slaveId,
+                () -> filteredSlaves(parseSlaves(slaveCall(slaveId).clone().execute()), slaveId));
+        return slaves != null ? slaves : snapshot.getSlaves();
+    }
+
+    private CompletableFuture<ReservationIndex> slavesForAsync(String slaveId) {
+        if (slaveId == null || !useServerFilters() || snapshot.hasSlaves()) {
+            return snapshot.getSlavesAsync();
+        }
+
+        return snapshot.getSlaveAsync(slaveId, () -> HTTPUtils.enqueue(slaveCall(slaveId).clone()).thenApply(response -> {
+            try {
+                return filteredSlaves(parseSlaves(response), slaveId);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        })).thenCompose(slaves -> slaves != null ? CompletableFuture.completedFuture(slaves) : snapshot.getSlavesAsync());
+    }
+
+    // masters that ignore or reject the filter answer with every slave or with an error; filters are then disabled
+    private ReservationIndex filteredSlaves(ReservationIndex slaves, String slaveId) {
+        if (slaves == null) {
+            LOG.info("slave_id filter rejected, falling back to the whole /slaves document");
+            Metrics.retry("slaves", "filter_rejected");
+            serverFilters = false;
+            return null;
+        }
+        if (slaves.getAgentIds().stream().anyMatch(agentId -> !agentId.equals(slaveId))) {
+            LOG.info("slave_id filter ignored by the master, falling back to the whole /slaves document");
+            serverFilters = false;
+            snapshot.putSlaves(slaves);
+        }
+        return slaves;
+    }
+
+    private Call<ResponseBody> slaveCall(String slaveId) {
+        if (!hasEndpointPrefix()) return mesosInterface.findResourcesForSlave(slaveId);
+        else return mesosInterface.findResources(getEndpointsPrefix(), slaveId);
+    }
+
+    // the v1 operator API has no filters
+    private boolean useServerFilters() {
+        return serverFilters && apiVersion == ApiVersion.LEGACY;
+    }
+
+    private Call<ResponseBody> slavesCall() {
+        if (!hasEndpointPrefix()) return mesosInterface.findResources();
+        else return mesosInterface.findResources(getEndpointsPrefix());
+    }
+
+    private ReservationIndex parseSlaves(Response<ResponseBody> response) throws IOException {
+        LOG.info("fetchSlaves " + response.message());
+        try (ResponseBody body = response.body()) {
+            if (response.code() != HTTPUtils.HTTP_OK_CODE) {
+                LOG.info("Error fetching slaves returned {} - {}", response.code(), response.errorBody());
+                return null;
+            }
+            if (apiVersion == ApiVersion.V1) {
+                return ReservationIndex.from(isProtobuf(body)
+                        ? StateParser.parseOperatorAgentsProtobuf(body.byteStream())
+                        : StateParser.parseOperatorAgents(body.byteStream()));
+            }
+            return ReservationIndex.from(StateParser.parseSlaves(body.byteStream()));
+        }
+    }
+
+    // resources that are not valid JSON objects are kept as null, so they are answered with -1 in their position
+    private static List<Resource> parse(List<String> resourceJsons) {
+        List<Resource> resources = new ArrayList<>(resourceJsons.size());
+        for (String resourceJson : resourceJsons) {
+            Resource resource = null;
+            if (resourceJson != null && !resourceJson.isEmpty()) {
+                try {
+                    resource = Resource.parse(resourceJson);
+                } catch (IOException e) {
+                    LOG.error("Unable to read resource " + resourceJson);
+                }
+            }
+            resources.add(resource);
+        }
+        return resources;
+    }
+
+    // failures of asynchronous stages arrive wrapped in a CompletionException
+    private static Throwable unwrap(Throwable e) {
+        return (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+    }
+
+    private Call<ResponseBody> teardownCall(String frameworkId) {
+        if (apiVersion == ApiVersion.V1) {
+            return operatorCall("{\"type\":\"TEARDOWN\",\"teardown\":{\"framework_id\":{\"value\":" + quote(frameworkId) + "}}}");
+        }
+        if (!hasEndpointPrefix()) return mesosInterface.teardown(frameworkId);
+        else return mesosInterface.teardown(getEndpointsPrefix(), frameworkId);
+    }
+
+    // resources are written from their parsed trees straight into the request body
+    private Call<ResponseBody> unreserveCall(String slaveId, List<Resource> resources) throws IOException {
+        if (apiVersion == ApiVersion.V1) {
+            ObjectNode call = MAPPER.createObjectNode().put("type", "UNRESERVE_RESOURCES");
+            ObjectNode unreserve = call.putObject("unreserve_resources");
+            unreserve.putObject("agent_id").put("value", slaveId);
+            unreserve.set("resources", array(resources));
+            return operatorCall(MAPPER.writeValueAsString(call));
+        }
+        String body = MAPPER.writeValueAsString(array(resources));
+        if (!hasEndpointPrefix()) return mesosInterface.unreserve(slaveId, body);
+        else return mesosInterface.unreserve(getEndpointsPrefix(), slaveId, body);
+    }
+
+    private Call<ResponseBody> destroyVolumesCall(String slaveId, List<Resource> volumes) throws IOException {
+        if (apiVersion == ApiVersion.V1) {
+            ObjectNode call = MAPPER.createObjectNode().put("type", "DESTROY_VOLUMES");
+            ObjectNode destroy = call.putObject("destroy_volumes");
+            destroy.putObject("agent_id").put("value", slaveId);
+            destroy.set("volumes", array(volumes));
+            return operatorCall(MAPPER.writeValueAsString(call));
+        }
+        String body = MAPPER.writeValueAsString(array(volumes));
+        if (!hasEndpointPrefix()) return mesosInterface.destroyVolumes(slaveId, body);
+        else return mesosInterface.destroyVolumes(getEndpointsPrefix(), slaveId, body);
+    }
+
+    // the array shares the resource trees, nothing is copied
+    private ArrayNode array(List<Resource> resources) {
+        ArrayNode array = MAPPER.createArrayNode();
+        resources.forEach(resource -> array.add(resource.getJson()));
+        return array;
+    }
+
+    // v1 operator API call, JSON encoded
+    private Call<ResponseBody> operatorCall(String call) {
+        RequestBody body = RequestBody.create(JSON, call);
+        if (!hasEndpointPrefix()) return mesosInterface.operator(body);
+        else return mesosInterface.operator(getEndpointsPrefix(), body);
+    }
+
+    // v1 operator state call, the response is streamed into the state parser and must be closed
+    private Call<ResponseBody> operatorStateCall(Protos.Call.Type type, boolean protobuf) {
+        if (protobuf) {
+            RequestBody body = RequestBody.create(PROTOBUF, Protos.Call.newBuilder().setType(type).build().toByteArray());
+            if (!hasEndpointPrefix()) return mesosInterface.operatorStateProtobuf(body);
+            else return mesosInterface.operatorStateProtobuf(getEndpointsPrefix(), body);
+        }
+        RequestBody body = RequestBody.create(JSON, "{\"type\":\"" + type.name() + "\"}");
+        if (!hasEndpointPrefix()) return mesosInterface.operatorState(body);
+        else return mesosInterface.operatorState(getEndpointsPrefix(), body);
+    }
+
+    private Response<ResponseBody> executeOperatorState(Protos.Call.Type type) throws IOException {
+        boolean protobuf = operatorProtobuf;
+        Response<ResponseBody> response = operatorStateCall(type, protobuf).clone().execute();
+        if (!protobufRefused(protobuf, response)) {
+            return response;
+        }
+        return operatorStateCall(type, false).clone().execute();
+    }
+
+    private CompletableFuture<Response<ResponseBody>> enqueueOperatorState(Protos.Call.Type type) {
+        boolean protobuf = operatorProtobuf;
+        return HTTPUtils.enqueue(operatorStateCall(type, protobuf).clone()).thenCompose(response ->
+                protobufRefused(protobuf, response)
+                        ? HTTPUtils.enqueue(operatorStateCall(type, false).clone())
+                        : CompletableFuture.completedFuture(response));
+    }
+
+    // masters that only speak JSON answer 406 or 415; protobuf is then disabled for the rest of the run
+    private boolean protobufRefused(boolean protobuf, Response<ResponseBody> response) {
+        if (!protobuf || (response.code() != HTTPUtils.HTTP_NOT_ACCEPTABLE_CODE && response.code() != HTTPUtils.HTTP_UNSUPPORTED_MEDIA_TYPE_CODE)) {
+            return false;
+        }
+        LOG.info("protobuf refused by the master ({}), falling back to JSON state calls", response.code());
+        Metrics.retry("operator", "protobuf_refused");
+        closeQuietly(response);
+        operatorProtobuf = false;
+        return true;
+    }
+
+    private static void closeQuietly(Response<ResponseBody> response) {
+        if (response.body() != null) response.body().close();
+        if (response.errorBody() != null) response.errorBody().close();
+    }
+
+    private static boolean isProtobuf(ResponseBody body) {
+        MediaType type = body.contentType();
+        return type != null && PROTOBUF.type().equals(type.type()) && PROTOBUF.subtype().equals(type.subtype());
+    }
+
+    private static String quote(String value) {
+        return "\"" + new String(JsonStringEncoder.getInstance().quoteAsString(value)) + "\"";
+    }
+
     public void setMesosInterface(MesosInterface mesosInterface) {
         this.mesosInterface = mesosInterface;
     }
@@ -33,7 +33,6 @@ public class SSOTokenResolver {
 
         this.redirectionInterceptor = new RedirectionInterceptor();
         this.cookieInterceptor = new CookieInterceptor();
-        this.clientBuilder = new OkHttpClient.Builder();
         this.clientBuilder = HTTPUtils.getUnsafeOkHttpClient();
         this.clientBuilder.addNetworkInterceptor(this.redirectionInterceptor);
         this.clientBuilder.addNetworkInterceptor(this.cookieInterceptor);
@@ -0,0 +1,176 @@
+package com.stratio.mesos.auth;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk cache of dc/os tokens obtained through the SSO login, one file per SSO url and user.
+ * Tokens are reused until shortly before the expiry written in the token itself, files are only readable by the owner
+ */
+public class TokenCache {
+    private static final Logger LOG = LoggerFactory.getLogger(TokenCache.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), ".janithor", "tokens");
+    private static final long DEFAULT_MARGIN_SECONDS = 60;
+
+    private static final Set<PosixFilePermission> OWNER_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_FILE = PosixFilePermissions.fromString("rw-------");
+
+    private final Path directory;
+    private final long marginSeconds;
+
+    /**
+     * Cache stored in ~/.janithor/tokens, tokens are renewed one minute before they expire
+     */
+    public TokenCache() {
+        this(DEFAULT_DIRECTORY, DEFAULT_MARGIN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param directory folder holding the cached tokens, created on first write
+     * @param margin time before the expiry from which a cached token is no longer used
+     * @param unit margin unit
+     */
+    public TokenCache(Path directory, long margin, TimeUnit unit) {
+        this.directory = directory;
+        this.marginSeconds = unit.toSeconds(margin);
+    }
+
+    /**
+     * Returns the cached token for a user, as long as it is not about to expire
+     * @param ssoUrl sso login url
+     * @param user sso user
+     * @return cached token or empty if there is none or it is about to expire
+     */
+    public Optional<String> get(String ssoUrl, String user) {
+        Path file = fileFor(ssoUrl, user);
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+
+        try {
+            String token = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+            long expiresAt = expiresAt(token);
+            if (expiresAt - marginSeconds > System.currentTimeMillis() / 1000) {
+                LOG.debug("Using cached token for {} until {}", user, expiresAt);
+                return Optional.of(token);
+            }
+            LOG.debug("Cached token for {} is expired", user);
+        } catch (IOException e) {
+            LOG.info("Unable to read cached token with message " + e.getMessage());
+        }
+        invalidate(ssoUrl, user);
+        return Optional.empty();
+    }
+
+    /**
+     * Stores a token for a user, replacing any previous one
+     * @param ssoUrl sso login url
+     * @param user sso user
+     * @param token dc/os token
+     */
+    public void put(String ssoUrl, String user, String token) {
+        if (expiresAt(token) < 0) {
+            LOG.info("Token without expiry is not cached");
+            return;
+        }
+
+        try {
+            createDirectory();
+            Path temporary = Files.createTempFile(directory, "token", ".tmp");
+            restrict(temporary, OWNER_FILE);
+            Files.write(temporary, token.getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, fileFor(ssoUrl, user), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.info("Unable to cache token with message " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the cached token of a user, if any
+     * @param ssoUrl sso login url
+     * @param user sso user
+     */
+    public void invalidate(String ssoUrl, String user) {
+        try {
+            Files.deleteIfExists(fileFor(ssoUrl, user));
+        } catch (IOException e) {
+            LOG.info("Unable to remove cached token with message " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the expiry claim of a JWT token
+     * @param token dc/os token
+     * @return expiry in seconds since epoch or -1 if the token has no readable expiry
+     */
+    public static long expiresAt(String token) {
+        if (token == null) {
+            return -1;
+        }
+
+        String[] parts = token.split("\\.");
+        if (parts.length < 2) {
+            return -1;
+        }
+
+        try {
+            JsonNode claims = MAPPER.readTree(Base64.getUrlDecoder().decode(parts[1]));
+            JsonNode exp = claims.get("exp");
+            return (exp != null && exp.canConvertToLong()) ? exp.asLong() : -1;
+        } catch (IOException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    // files are named after a digest, so neither the url nor the user end up in the file system
+    private Path fileFor(String ssoUrl, String user) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((ssoUrl + "\n" + user).getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return directory.resolve(name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private void createDirectory() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            Files.createDirectories(directory);
+            restrict(directory, OWNER_DIRECTORY);
+        }
+    }
+
+    private static void restrict(Path path, Set<PosixFilePermission> permissions) throws IOException {
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.setPosixFilePermissions(path, permissions);
+        } else {
+            path.toFile().setReadable(false, false);
+            path.toFile().setWritable(false, false);
+            path.toFile().setReadable(true, true);
+            path.toFile().setWritable(true, true);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.stratio.mesos.batch;
+
+import com.stratio.mesos.CLI;
+import com.stratio.mesos.api.ExhibitorApi;
+import com.stratio.mesos.api.MarathonApi;
+import com.stratio.mesos.api.MesosApi;
+import com.stratio.mesos.plan.UninstallPlan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Runs the operations of every service in a manifest through the same clients, so the mesos master state
+ * is downloaded once and authentication happens once for the whole run
+ */
+public class BatchRunner {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchRunner.class);
+
+    private final Supplier<MesosApi> mesos;
+    private final Supplier<ExhibitorApi> exhibitor;
+    private final Supplier<MarathonApi> marathon;
+    private final int parallelism;
+
+    /**
+     * @param mesos mesos client factory, called at most once
+     * @param exhibitor exhibitor client factory, called at most once
+     * @param marathon marathon client factory, called at most once
+     * @param parallelism slaves unreserved concurrently
+     */
+    public BatchRunner(Supplier<MesosApi> mesos, Supplier<ExhibitorApi> exhibitor, Supplier<MarathonApi> marathon, int parallelism) {
+        this.mesos = memoize(mesos);
+        this.exhibitor = memoize(exhibitor);
+        this.marathon = memoize(marathon);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Runs every operation of the manifest in order. A failed operation does not stop the rest of the run
+     * @param manifest services to clean up
+     * @return outcome of every operation
+     */
+    public Report run(Manifest manifest) {
+        Report report = new Report();
+        for (Manifest.Service service : manifest.getServices()) {
+            for (String operation : service.getOperations()) {
+                boolean succeeded;
+                try {
+                    succeeded = run(service, operation);
+                } catch (RuntimeException e) {
+                    LOG.info("Batch operation " + operation + " failed for " + service.getFramework() + " with message " + e.getMessage());
+                    succeeded = false;
+                }
+                report.add(service.getFramework(), operation, succeeded);
+            }
+        }
+        return report;
+    }
+
+    private boolean run(Manifest.Service service, String operation) {
+        String framework = service.getFramework();
+        String principal = service.getPrincipal();
+        String role = service.getRole();
+        boolean active = service.isActive();
+
+        switch (operation) {
+            case "lookup":
+                return CLI.lookup(mesos.get(), principal, role, framework, active);
+            case "teardown":
+                return CLI.teardown(mesos.get(), principal, role, framework, active);
+            case "unreserve":
+                return CLI.unreserve(mesos.get(), principal, role, framework, active, parallelism);
+            case "resources":
+                return CLI.resources(mesos.get(), principal, role, framework, active);
+            case "exhibitor":
+                return CLI.cleanup(exhibitor.get(), service.getZnode());
+            case "marathon":
+                return CLI.destroy(marathon.get(), framework);
+            case "uninstall":
+                return CLI.uninstall(mesos.get(), marathon.get(), exhibitor.get(), principal, role, framework, service.getZnode(), active,
+                        Math.max(parallelism, UninstallPlan.DEFAULT_PARALLELISM), false);
+            default:
+                LOG.error("Unsupported batch operation {} for {}", operation, framework);
+                return false;
+        }
+    }
+
+    private static <T> Supplier<T> memoize(Supplier<T> factory) {
+        return new Supplier<T>() {
+            private T instance;
+
+            @Override
+            public synchronized T get() {
+                if (instance == null) {
+                    instance = factory.get();
+                }
+                return instance;
+            }
+        };
+    }
+
+    /**
+     * Outcome of every operation of a batch run
+     */
+    public static class Report {
+        private final List<String> lines = new ArrayList<>();
+        private int succeeded;
+        private int failed;
+
+        void add(String framework, String operation, boolean success) {
+            lines.add(framework + " " + operation + ": " + (success ? "OK" : "FAILED"));
+            if (success) succeeded++;
+            else failed++;
+        }
+
+        public int getSucceeded() {
+            return succeeded;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public List<String> getLines() {
+            return Collections.unmodifiableList(lines);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder summary = new StringBuilder("Batch summary: ")
+                    .append(succeeded + failed).append(" operations, ")
+                    .append(succeeded).append(" succeeded, ")
+                    .append(failed).append(" failed");
+            lines.forEach(line -> summary.append("\n  ").append(line));
+            return summary.toString();
+        }
+    }
+}
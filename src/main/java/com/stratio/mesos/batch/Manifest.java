@@ -0,0 +1,131 @@
+package com.stratio.mesos.batch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * List of services to clean up in a single janithor run.
+ * Accepted formats are a JSON array of services, a JSON object with a "services" array, or one service per line (NDJSON):
+ * <pre>
+ * {"framework":"kafka-sec", "principal":"kafka-principal", "role":"kafka-sec-role", "active":true,
+ *  "znode":"dcos-service-kafka-sec", "operations":["teardown", "unreserve", "exhibitor", "marathon"]}
+ * </pre>
+ */
+public class Manifest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final List<Service> services;
+
+    public Manifest(List<Service> services) {
+        this.services = Collections.unmodifiableList(new ArrayList<>(services));
+    }
+
+    /**
+     * Reads a manifest in any of the accepted formats
+     * @param in manifest stream, it is not closed
+     * @return parsed manifest
+     * @throws IOException if the stream is not valid JSON or a service has no framework or operations
+     */
+    public static Manifest read(InputStream in) throws IOException {
+        List<Service> services = new ArrayList<>();
+        MappingIterator<JsonNode> documents = MAPPER.readerFor(JsonNode.class).readValues(in);
+        while (documents.hasNextValue()) {
+            JsonNode document = documents.nextValue();
+            if (document.isArray()) {
+                readServices(document, services);
+            } else if (document.has("services")) {
+                readServices(document.get("services"), services);
+            } else {
+                services.add(readService(document));
+            }
+        }
+        return new Manifest(services);
+    }
+
+    public List<Service> getServices() {
+        return services;
+    }
+
+    private static void readServices(JsonNode array, List<Service> services) throws IOException {
+        if (!array.isArray()) {
+            throw new IOException("Unexpected manifest, a list of services was expected");
+        }
+        for (JsonNode service : array) {
+            services.add(readService(service));
+        }
+    }
+
+    private static Service readService(JsonNode node) throws IOException {
+        if (!node.isObject() || !node.hasNonNull("framework")) {
+            throw new IOException("Every service in the manifest requires a framework: " + node);
+        }
+
+        JsonNode operationsNode = node.get("operations");
+        if (operationsNode == null || !operationsNode.isArray() || operationsNode.size() == 0) {
+            throw new IOException("Every service in the manifest requires a list of operations: " + node);
+        }
+        List<String> operations = new ArrayList<>();
+        operationsNode.forEach(operation -> operations.add(operation.asText()));
+
+        String framework = node.get("framework").asText();
+        String znode = node.hasNonNull("znode") ? node.get("znode").asText() : framework;
+        boolean active = !node.hasNonNull("active") || node.get("active").asBoolean();
+        return new Service(framework, text(node, "principal"), text(node, "role"), active, znode, operations);
+    }
+
+    private static String text(JsonNode node, String field) {
+        return node.hasNonNull(field) ? node.get(field).asText() : null;
+    }
+
+    /**
+     * A service of the manifest and the operations to run on it, in order
+     */
+    public static class Service {
+        private final String framework;
+        private final String principal;
+        private final String role;
+        private final boolean active;
+        private final String znode;
+        private final List<String> operations;
+
+        public Service(String framework, String principal, String role, boolean active, String znode, List<String> operations) {
+            this.framework = framework;
+            this.principal = principal;
+            this.role = role;
+            this.active = active;
+            this.znode = znode;
+            this.operations = Collections.unmodifiableList(new ArrayList<>(operations));
+        }
+
+        public String getFramework() {
+            return framework;
+        }
+
+        public String getPrincipal() {
+            return principal;
+        }
+
+        public String getRole() {
+            return role;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public String getZnode() {
+            return znode;
+        }
+
+        public List<String> getOperations() {
+            return operations;
+        }
+    }
+}
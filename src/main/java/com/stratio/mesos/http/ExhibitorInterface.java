@@ -3,7 +3,9 @@ package com.stratio.mesos.http;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.DELETE;
+import retrofit2.http.GET;
 import retrofit2.http.Path;
+import retrofit2.http.Query;
 
 /**
  * Created by alonso on 23/06/17.
@@ -13,4 +15,16 @@ public interface ExhibitorInterface {
     Call<ResponseBody> delete(
             @Path("service") String service
     );
+
+    // path segments already encoded, slashes included
+    @DELETE("/exhibitor/v1/explorer/znode/{path}")
+    Call<ResponseBody> deletePath(
+            @Path(value = "path", encoded = true) String path
+    );
+
+    // children of a znode, [{"title":..., "key":...}]
+    @GET("/exhibitor/v1/explorer/node")
+    Call<ResponseBody> children(
+            @Query("key") String key
+    );
 }
@@ -0,0 +1,87 @@
+package com.stratio.mesos.http;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.GzipSource;
+import okio.Okio;
+import okio.Source;
+
+import java.io.IOException;
+
+/**
+ * Asks for gzip encoded responses and decompresses them while they are read. State calls are declared
+ * {@code @Streaming}, so their documents go straight from the socket into the state parser, held neither
+ * compressed nor decompressed in memory; the responses of every other call are buffered whole, already
+ * decompressed, by Retrofit. Received and decompressed bytes are accounted in {@link TransferStats}
+ */
+public class GzipInterceptor implements Interceptor {
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (request.header("Accept-Encoding") == null) {
+            request = request.newBuilder().header("Accept-Encoding", "gzip").build();
+        }
+
+        Response response = chain.proceed(request);
+        ResponseBody body = response.body();
+        if (body == null) {
+            return response;
+        }
+
+        boolean gzip = "gzip".equalsIgnoreCase(response.header("Content-Encoding"));
+        CountingSource received = new CountingSource(body.source());
+        CountingSource decoded = new CountingSource(gzip ? new GzipSource(received) : received) {
+            private boolean recorded;
+
+            @Override
+            void finished() {
+                if (!recorded) {
+                    recorded = true;
+                    TransferStats.record(MetricsInterceptor.endpoint(chain.request().url()), received.count, count);
+                }
+            }
+        };
+
+        Response.Builder builder = response.newBuilder();
+        if (gzip) {
+            builder.removeHeader("Content-Encoding").removeHeader("Content-Length");
+        }
+        return builder
+                .body(ResponseBody.create(body.contentType(), gzip ? -1 : body.contentLength(), Okio.buffer(decoded)))
+                .build();
+    }
+
+    // counts the bytes read through it, finished() is called once the source is exhausted or closed
+    private static class CountingSource extends ForwardingSource {
+        long count;
+
+        CountingSource(Source delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read == -1) {
+                finished();
+            } else {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finished();
+            super.close();
+        }
+
+        void finished() {
+        }
+    }
+}
@@ -1,9 +1,14 @@
 package com.stratio.mesos.http;
 
+import okhttp3.ConnectionPool;
 import okhttp3.Credentials;
+import okhttp3.Dispatcher;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
 
@@ -12,6 +17,10 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by alonso on 23/06/17.
@@ -19,19 +28,27 @@ import java.security.cert.CertificateException;
 public class HTTPUtils {
     public static final int HTTP_OK_CODE = 200;
     public static final int UNRESERVE_OK_CODE = 202;
+    public static final int HTTP_NOT_FOUND_CODE = 404;
+    public static final int HTTP_NOT_ACCEPTABLE_CODE = 406;
+    public static final int CONFLICT_CODE = 409;
+    public static final int HTTP_UNSUPPORTED_MEDIA_TYPE_CODE = 415;
+
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 300;
+
+    // idle connections kept per pool, 0 to keep as many as requests may be in flight to a host
+    private static int poolSize = 0;
+    private static long keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+    private static int maxInFlight = LimitInterceptor.DEFAULT_MAX_IN_FLIGHT;
+    private static double requestsPerSecond = LimitInterceptor.DEFAULT_REQUESTS_PER_SECOND;
+    private static OkHttpClient sharedClient;
+    private static LimitInterceptor limiter;
 
     /**
      * Builds an unauthenticated REST interface to access mesos
      * @return the REST interface
      */
     public static <T> T buildBasicInterface(String baseUrl, Class<T> serverInterface) {
-        Retrofit mesosInterfaceBuilder = new Retrofit.Builder()
-                .baseUrl(baseUrl)
-                .addConverterFactory(GsonConverterFactory.create())
-                .client(getUnsafeOkHttpClient().build())
-                .build();
-
-        return mesosInterfaceBuilder.create(serverInterface);
+        return buildInterface(baseUrl, getUnsafeOkHttpClient(), serverInterface);
     }
 
     /**
@@ -40,13 +57,7 @@ public class HTTPUtils {
      * @return the authenticated REST interface
      */
     public static <T> T buildTokenBasedInterface(String token, String baseUrl, Class<T> serverInterface) {
-        Retrofit mesosInterfaceBuilder = new Retrofit.Builder()
-                .baseUrl(baseUrl)
-                .addConverterFactory(GsonConverterFactory.create())
-                .client(getUnsafeOkHttpClient("Authorization", "token="+token).build())
-                .build();
-
-        return mesosInterfaceBuilder.create(serverInterface);
+        return buildInterface(baseUrl, getUnsafeOkHttpClient("Authorization", "token="+token), serverInterface);
     }
 
     /**
@@ -55,13 +66,7 @@ public class HTTPUtils {
      * @return the authenticated REST interface
      */
     public static <T> T buildCookieBasedInterface(String token, String baseUrl, Class<T> serverInterface) {
-        Retrofit mesosInterfaceBuilder = new Retrofit.Builder()
-                .baseUrl(baseUrl)
-                .addConverterFactory(GsonConverterFactory.create())
-                .client(getUnsafeOkHttpClient("Cookie", "dcos-acs-auth-cookie="+token).build())
-                .build();
-
-        return mesosInterfaceBuilder.create(serverInterface);
+        return buildInterface(baseUrl, getUnsafeOkHttpClient("Cookie", "dcos-acs-auth-cookie="+token), serverInterface);
     }
 
     /**
@@ -71,15 +76,62 @@ public class HTTPUtils {
      * @return the authenticated REST interface
      */
     public static <T> T buildSecretBasedInterface(String principal, String secret, String baseUrl, Class<T> serverInterface) {
+        return buildInterface(baseUrl, getUnsafeOkHttpClient("Authorization", Credentials.basic(principal, secret)), serverInterface);
+    }
+
+    // a comma separated list of masters is served by the leader among them, see LeaderInterceptor
+    private static <T> T buildInterface(String baseUrl, OkHttpClient.Builder client, Class<T> serverInterface) {
+        List<String> masters = new ArrayList<>();
+        for (String master : baseUrl.split(",")) {
+            if (!master.trim().isEmpty()) masters.add(master.trim());
+        }
+        if (masters.size() > 1) {
+            // the leader is asked for with the same authentication as the calls
+            new LeaderInterceptor(masters, client.build()).install(client);
+        }
+
         Retrofit mesosInterfaceBuilder = new Retrofit.Builder()
-                .baseUrl(baseUrl)
+                .baseUrl(masters.isEmpty() ? baseUrl : masters.get(0))
                 .addConverterFactory(GsonConverterFactory.create())
-                .client(getUnsafeOkHttpClient("Authorization", Credentials.basic(principal, secret)).build())
+                .client(client.build())
                 .build();
 
         return mesosInterfaceBuilder.create(serverInterface);
     }
 
+    /**
+     * Runs a call asynchronously on the shared dispatcher. The call is enqueued once the {@link LimitInterceptor}
+     * grants it a slot, so no dispatcher thread waits for the limits. Cancelling the future cancels the call
+     * @param call call to enqueue
+     * @return future response, completed exceptionally if the server could not be reached
+     */
+    public static <T> CompletableFuture<Response<T>> enqueue(Call<T> call) {
+        CompletableFuture<Response<T>> future = new CompletableFuture<>();
+        LimitInterceptor limits = getLimiter();
+        Request request = call.request();
+        CompletableFuture<Void> slot = limits.reserve(request);
+        slot.thenRun(() -> call.enqueue(new Callback<T>() {
+            @Override
+            public void onResponse(Call<T> call, Response<T> response) {
+                limits.forget(request);
+                future.complete(response);
+            }
+
+            @Override
+            public void onFailure(Call<T> call, Throwable t) {
+                limits.forget(request);
+                future.completeExceptionally(t);
+            }
+        }));
+        future.whenComplete((response, t) -> {
+            if (future.isCancelled()) {
+                slot.cancel(false);
+                call.cancel();
+            }
+        });
+        return future;
+    }
+
     /**
      * Builds a HTTP client using the specified token as Authorization header, ignoring all server certificates in the process
      * @return HTTP client (no client SSL verification)
@@ -94,25 +146,87 @@ public class HTTPUtils {
      * @return HTTP client (no client SSL verification)
      */
     public static OkHttpClient.Builder getUnsafeOkHttpClient(String header, String token) {
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        // derived clients share the connection pool, dispatcher and TLS context of the shared client
+        OkHttpClient.Builder builder = getSharedClient().newBuilder();
 
-        try {
-            if (token!=null) {
-                Interceptor mTokenInterceptor = chain -> {
-                    Request request = chain.request();
-                    if (token != null) {
-                        Request.Builder requestBuilder = request.newBuilder()
-                                .addHeader(header, token);
-                        Request newRequest = requestBuilder.build();
-
-                        return chain.proceed(newRequest);
-                    }
-                    return chain.proceed(request);
-                };
+        if (token!=null) {
+            Interceptor mTokenInterceptor = chain -> {
+                Request request = chain.request();
+                if (token != null) {
+                    Request.Builder requestBuilder = request.newBuilder()
+                            .addHeader(header, token);
+                    Request newRequest = requestBuilder.build();
 
-                builder.addNetworkInterceptor(mTokenInterceptor);
-            }
+                    return chain.proceed(newRequest);
+                }
+                return chain.proceed(request);
+            };
+
+            builder.addNetworkInterceptor(mTokenInterceptor);
+        }
+
+        return builder;
+    }
+
+    /**
+     * Sets the size and keep-alive of the connection pool shared by every client.
+     * Clients built before this call keep using the previous pool
+     * @param maxIdleConnections idle connections kept open, 0 to keep one per request allowed in flight to a host
+     * @param keepAliveDuration time an idle connection is kept open
+     * @param timeUnit keep-alive unit
+     */
+    public static synchronized void configureConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit) {
+        if (maxIdleConnections < 0 || keepAliveDuration <= 0) {
+            throw new IllegalArgumentException("maxIdleConnections cannot be negative and keepAliveDuration must be positive");
+        }
+        poolSize = maxIdleConnections;
+        keepAliveSeconds = Math.max(1, timeUnit.toSeconds(keepAliveDuration));
+        sharedClient = null;
+    }
+
+    /**
+     * Sets the limits applied to every host by the shared client, see {@link LimitInterceptor}.
+     * Clients built before this call keep using the previous limits
+     * @param maxInFlight upper bound of the adaptive in-flight limit of every host
+     * @param requestsPerSecond requests per second sent to every host, 0 for no limit
+     */
+    public static synchronized void configureLimits(int maxInFlight, double requestsPerSecond) {
+        if (maxInFlight < 1 || requestsPerSecond < 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive and requestsPerSecond cannot be negative");
+        }
+        HTTPUtils.maxInFlight = maxInFlight;
+        HTTPUtils.requestsPerSecond = requestsPerSecond;
+        sharedClient = null;
+    }
 
+    /**
+     * Returns the HTTP client every REST interface derives from, so all of them reuse the same connections,
+     * threads and TLS sessions. Server certificates are not verified
+     * @return shared HTTP client
+     */
+    public static synchronized OkHttpClient getSharedClient() {
+        if (sharedClient == null) {
+            sharedClient = buildSharedClient();
+        }
+        return sharedClient;
+    }
+
+    private static synchronized LimitInterceptor getLimiter() {
+        getSharedClient();
+        return limiter;
+    }
+
+    private static OkHttpClient buildSharedClient() {
+        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+
+        // asynchronous calls are only enqueued once they hold a slot, so the dispatcher allows as many as the limits
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(maxInFlight);
+        dispatcher.setMaxRequests(Math.max(dispatcher.getMaxRequests(), maxInFlight));
+        builder.dispatcher(dispatcher);
+        limiter = new LimitInterceptor(maxInFlight, requestsPerSecond);
+
+        try {
             // Create a trust manager that does not validate certificate chains
             final TrustManager[] trustAllCerts = new TrustManager[] {
                     new X509TrustManager() {
@@ -139,8 +253,13 @@ public class HTTPUtils {
             builder.hostnameVerifier((hostname, session) -> true);
             builder.followRedirects(true);
             builder.retryOnConnectionFailure(true);
+            // the connections of a burst of requests in flight are kept for the next one instead of reopened
+            builder.connectionPool(new ConnectionPool(poolSize > 0 ? poolSize : maxInFlight, keepAliveSeconds, TimeUnit.SECONDS));
+            builder.addInterceptor(limiter);
+            builder.addInterceptor(new MetricsInterceptor());
+            builder.addInterceptor(new GzipInterceptor());
 
-            return builder;
+            return builder.build();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -0,0 +1,200 @@
+package com.stratio.mesos.http;
+
+import com.stratio.mesos.metrics.Metrics;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sends every request to the leading master of a pool, so calls neither pay the redirect of a standby master
+ * nor fail when a single master is down. The leader is found once through /master/redirect, asking each master in
+ * turn, and found again when the pinned master cannot be reached. When a pinned master redirects a request
+ * because it lost the leadership, requests are pinned to the master the redirect led to.
+ * Servers that are not mesos masters are pinned to the first one reachable. A master url with a path, such as
+ * the /mesos location of an admin router, is asked for the leader under that path.
+ * Connect timeouts fail over as unreachable masters; read timeouts only for idempotent requests, since the
+ * master may have received the others
+ */
+public class LeaderInterceptor implements Interceptor {
+    private static final Logger LOG = LoggerFactory.getLogger(LeaderInterceptor.class);
+    private static final int TEMPORARY_REDIRECT = 307;
+
+    private final List<HttpUrl> masters;
+    private final OkHttpClient discoveryClient;
+    // requests whose connection was established, by tag, to tell connect timeouts from read timeouts
+    private final Set<Object> connected = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile HttpUrl leader;
+
+    /**
+     * @param masters master urls, a mesos-dns name resolving to any master is also valid
+     * @param client client used to ask for the leader, with the authentication of the calls; redirects are not followed
+     * @see #install(OkHttpClient.Builder)
+     */
+    public LeaderInterceptor(List<String> masters, OkHttpClient client) {
+        this.masters = new ArrayList<>(masters.size());
+        for (String master : masters) {
+            HttpUrl url = HttpUrl.parse(master);
+            if (url == null) {
+                throw new IllegalArgumentException("Invalid master url " + master);
+            }
+            this.masters.add(url);
+        }
+        if (this.masters.isEmpty()) {
+            throw new IllegalArgumentException("At least one master is required");
+        }
+        this.discoveryClient = client.newBuilder().followRedirects(false).build();
+    }
+
+    /**
+     * Adds the interceptor first of all, so limits and metrics apply to the leader, and the network interceptor
+     * that records which requests got connected
+     * @param client client whose calls are sent to the leader
+     */
+    public void install(OkHttpClient.Builder client) {
+        client.interceptors().add(0, this);
+        client.addNetworkInterceptor(chain -> {
+            connected.add(chain.request().tag());
+            return chain.proceed(chain.request());
+        });
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        HttpUrl pinned = leader != null ? leader : resolve(null);
+        Object tag = chain.request().tag();
+        Response response;
+        try {
+            response = chain.proceed(pin(chain.request(), pinned));
+        } catch (ConnectException | NoRouteToHostException | UnknownHostException e) {
+            // the request never reached the master, it is safe to send it to the new leader
+            response = failover(chain, pinned, "unreachable");
+        } catch (SocketTimeoutException e) {
+            if (connected.contains(tag) && !isIdempotent(chain.request())) {
+                throw e;
+            }
+            response = failover(chain, pinned, connected.contains(tag) ? "read_timeout" : "connect_timeout");
+        } finally {
+            connected.remove(tag);
+        }
+
+        // redirects of GET requests are followed by the client, the others reach this point unanswered
+        if (response.priorResponse() != null && response.priorResponse().code() == TEMPORARY_REDIRECT) {
+            moved(response.request().url());
+        } else if (response.code() == TEMPORARY_REDIRECT && response.header("Location") != null) {
+            HttpUrl target = location(response.request().url(), response.header("Location"));
+            if (target != null && !sameServer(target, pinned)) {
+                response.close();
+                moved(target);
+                Metrics.retry("leader", "redirected");
+                response = chain.proceed(pin(chain.request(), target));
+            }
+        }
+        return response;
+    }
+
+    private Response failover(Chain chain, HttpUrl pinned, String reason) throws IOException {
+        LOG.info("Master {} {}, looking for the leader again", pinned, reason.replace('_', ' '));
+        Metrics.retry("leader", reason);
+        return chain.proceed(pin(chain.request(), resolve(pinned)));
+    }
+
+    private static boolean isIdempotent(Request request) {
+        return "GET".equals(request.method()) || "HEAD".equals(request.method());
+    }
+
+    /**
+     * @return current leader, null if it has not been found yet
+     */
+    public HttpUrl getLeader() {
+        return leader;
+    }
+
+    private void moved(HttpUrl target) {
+        if (!sameServer(target, leader)) {
+            LOG.info("Leadership moved to {}", server(target));
+            leader = server(target);
+        }
+    }
+
+    // asks every master for the leader, starting after the one that failed
+    private synchronized HttpUrl resolve(HttpUrl failed) throws IOException {
+        if (leader != null && !sameServer(leader, failed)) {
+            return leader;
+        }
+
+        int first = 0;
+        for (int i = 0; failed != null && i < masters.size(); i++) {
+            if (sameServer(masters.get(i), failed)) first = i + 1;
+        }
+
+        for (int i = 0; i < masters.size(); i++) {
+            HttpUrl master = masters.get((first + i) % masters.size());
+            try {
+                HttpUrl found = askLeader(master);
+                if (found != null) {
+                    LOG.info("Leading master is {}", found);
+                    leader = found;
+                    return found;
+                }
+            } catch (IOException e) {
+                LOG.info("Master {} unreachable with message {}", master, e.getMessage());
+            }
+        }
+        leader = null;
+        throw new ConnectException("No master reachable among " + masters);
+    }
+
+    // the leader answers with its own address as well, anything but a redirect means the server is the one to use
+    private HttpUrl askLeader(HttpUrl master) throws IOException {
+        Request request = new Request.Builder().url(master.newBuilder().query(null).addPathSegments("master/redirect").build()).build();
+        try (Response response = discoveryClient.newCall(request).execute()) {
+            if (response.code() == 503) {
+                return null;
+            }
+            String location = response.header("Location");
+            if (response.code() != TEMPORARY_REDIRECT || location == null) {
+                return server(master);
+            }
+
+            HttpUrl target = location(master, location);
+            return target != null ? server(target) : null;
+        }
+    }
+
+    // mesos answers with a scheme relative location, //host:port
+    private static HttpUrl location(HttpUrl origin, String location) {
+        return location.startsWith("//") ? HttpUrl.parse(origin.scheme() + ":" + location) : origin.resolve(location);
+    }
+
+    private static Request pin(Request request, HttpUrl server) {
+        HttpUrl url = request.url().newBuilder()
+                .scheme(server.scheme())
+                .host(server.host())
+                .port(server.port())
+                .build();
+        return request.newBuilder().url(url).build();
+    }
+
+    private static HttpUrl server(HttpUrl url) {
+        return new HttpUrl.Builder().scheme(url.scheme()).host(url.host()).port(url.port()).build();
+    }
+
+    private static boolean sameServer(HttpUrl a, HttpUrl b) {
+        return a != null && b != null && a.scheme().equals(b.scheme()) && a.host().equals(b.host()) && a.port() == b.port();
+    }
+}
@@ -0,0 +1,335 @@
+package com.stratio.mesos.http;
+
+import com.stratio.mesos.metrics.Metrics;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps the requests in flight and the requests per second sent to every host, so parallel cleanups do not overload
+ * the mesos master, which serializes operator calls in a single actor.
+ * The in-flight limit adapts AIMD-style: it grows by one per round of successful requests while it is fully used,
+ * and is halved when the host answers 429, 503 or 409, times out, or becomes much slower than its best latency.
+ * A slot is released once the response headers arrive, bodies are streamed afterwards.
+ * Blocking calls wait for a slot on their own thread. Asynchronous calls reserve it with {@link #reserve(Request)}
+ * before being enqueued, so they never hold a dispatcher thread while waiting
+ */
+public class LimitInterceptor implements Interceptor {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+    public static final double DEFAULT_REQUESTS_PER_SECOND = 50;
+
+    private static final int INITIAL_LIMIT = 4;
+    private static final double BACKOFF_RATIO = 0.5;
+    // a response is too slow when it takes twice the best latency of its endpoint, and at least 50ms more
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final long MIN_LATENCY_INCREASE = TimeUnit.MILLISECONDS.toNanos(50);
+    // wakes up reservations waiting for the rate limit or a Retry-After
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "janithor-limit-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int maxInFlight;
+    private final double requestsPerSecond;
+    private final ConcurrentMap<String, HostLimit> hosts = new ConcurrentHashMap<>();
+    // slots reserved for asynchronous calls, by request tag, which survives request rewrites
+    private final ConcurrentMap<Object, HostLimit> reservations = new ConcurrentHashMap<>();
+
+    public LimitInterceptor() {
+        this(DEFAULT_MAX_IN_FLIGHT, DEFAULT_REQUESTS_PER_SECOND);
+    }
+
+    /**
+     * @param maxInFlight upper bound of the adaptive in-flight limit of every host
+     * @param requestsPerSecond requests per second sent to every host, 0 for no limit
+     */
+    public LimitInterceptor(int maxInFlight, double requestsPerSecond) {
+        if (maxInFlight < 1 || requestsPerSecond < 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive and requestsPerSecond cannot be negative");
+        }
+        this.maxInFlight = maxInFlight;
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String endpoint = MetricsInterceptor.endpoint(request.url());
+        HostLimit limit = hostLimit(request);
+
+        // a slot reserved for another host, such as a standby master, is given back
+        HostLimit reserved = reservations.remove(request.tag());
+        if (reserved != limit) {
+            if (reserved != null) reserved.cancel();
+            limit.acquire();
+        }
+        long start = System.nanoTime();
+        try {
+            Response response = chain.proceed(request);
+            limit.release(endpoint, System.nanoTime() - start, response.code(), retryAfter(response));
+            return response;
+        } catch (SocketTimeoutException e) {
+            limit.release(endpoint, System.nanoTime() - start, HostLimit.TIMEOUT, 0);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            // any failure gives the slot back, otherwise the host limit would shrink for good
+            limit.release(endpoint, System.nanoTime() - start, HostLimit.FAILURE, 0);
+            throw e;
+        }
+    }
+
+    /**
+     * Reserves a slot of the request host for an asynchronous call, which is then enqueued once it is held
+     * @param request request of the call, as returned by the call before it is enqueued
+     * @return future completed once the slot is held, cancelling it while waiting drops the reservation
+     */
+    public CompletableFuture<Void> reserve(Request request) {
+        return hostLimit(request).reserve(request.tag());
+    }
+
+    /**
+     * Gives back the slot reserved for a call that finished without reaching this interceptor
+     * @param request request passed to {@link #reserve(Request)}
+     */
+    public void forget(Request request) {
+        HostLimit reserved = reservations.remove(request.tag());
+        if (reserved != null) reserved.cancel();
+    }
+
+    private HostLimit hostLimit(Request request) {
+        return hosts.computeIfAbsent(request.url().host() + ":" + request.url().port(), HostLimit::new);
+    }
+
+    /**
+     * @param host host and port
+     * @return current in-flight limit of the host
+     */
+    public double getLimit(String host) {
+        HostLimit limit = hosts.get(host);
+        return limit != null ? limit.getLimit() : Math.min(INITIAL_LIMIT, maxInFlight);
+    }
+
+    // Retry-After in seconds, dates are not used by the mesos master
+    private static long retryAfter(Response response) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter == null) return 0;
+        try {
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private class HostLimit {
+        static final int TIMEOUT = -2;
+        static final int FAILURE = -1;
+
+        private final String host;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        private final Map<String, Long> baselines = new HashMap<>();
+        private final Deque<Reservation> waiting = new ArrayDeque<>();
+        private boolean wakeUpScheduled;
+        private double limit = Math.min(INITIAL_LIMIT, maxInFlight);
+        private int inFlight;
+        private double tokens = Math.max(1, requestsPerSecond);
+        private long refilledAt = System.nanoTime();
+        private long decreasedAt = System.nanoTime();
+        private long blockedUntil = System.nanoTime();
+
+        HostLimit(String host) {
+            this.host = host;
+            Metrics.concurrencyLimit(host, limit);
+        }
+
+        void acquire() throws InterruptedIOException {
+            lock.lock();
+            try {
+                for (long wait = tryAcquire(); wait != 0; wait = tryAcquire()) {
+                    if (wait == Long.MAX_VALUE) available.await();
+                    else available.awaitNanos(wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a request slot to " + host);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        CompletableFuture<Void> reserve(Object tag) {
+            Reservation reservation = new Reservation(tag);
+            lock.lock();
+            try {
+                waiting.add(reservation);
+            } finally {
+                lock.unlock();
+            }
+            grant();
+            return reservation.slot;
+        }
+
+        // a reserved slot that is not used, nothing is learnt from it
+        void cancel() {
+            lock.lock();
+            try {
+                inFlight--;
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            grant();
+        }
+
+        // hands free slots to the waiting reservations in order, completing them outside of the lock
+        private void grant() {
+            List<Reservation> granted = new ArrayList<>();
+            lock.lock();
+            try {
+                waiting.removeIf(reservation -> reservation.slot.isDone());
+                while (!waiting.isEmpty()) {
+                    long wait = tryAcquire();
+                    if (wait == 0) {
+                        granted.add(waiting.poll());
+                    } else {
+                        if (wait != Long.MAX_VALUE && !wakeUpScheduled) {
+                            wakeUpScheduled = true;
+                            TIMER.schedule(this::wakeUp, wait, TimeUnit.NANOSECONDS);
+                        }
+                        break;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            for (Reservation reservation : granted) {
+                reservations.put(reservation.tag, this);
+                if (!reservation.slot.complete(null)) {
+                    // cancelled while the slot was being granted
+                    reservations.remove(reservation.tag, this);
+                    cancel();
+                }
+            }
+        }
+
+        private void wakeUp() {
+            lock.lock();
+            try {
+                wakeUpScheduled = false;
+            } finally {
+                lock.unlock();
+            }
+            grant();
+        }
+
+        // takes a slot and returns 0, or returns the nanoseconds to wait, Long.MAX_VALUE until a slot is released
+        private long tryAcquire() {
+            long now = System.nanoTime();
+            refill(now);
+            if (now - blockedUntil < 0) {
+                return blockedUntil - now;
+            } else if (inFlight >= (int) limit) {
+                return Long.MAX_VALUE;
+            } else if (requestsPerSecond > 0 && tokens < 1) {
+                return Math.max(1, (long) ((1 - tokens) / requestsPerSecond * TimeUnit.SECONDS.toNanos(1)));
+            }
+            inFlight++;
+            if (requestsPerSecond > 0) tokens--;
+            return 0;
+        }
+
+        void release(String endpoint, long latency, int code, long retryAfter) {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                boolean saturated = inFlight >= (int) limit;
+                inFlight--;
+
+                String reason = null;
+                if (code == 429 || code == 503) {
+                    reason = "overloaded";
+                    if (retryAfter > 0) blockedUntil = now + retryAfter;
+                } else if (code == HTTPUtils.CONFLICT_CODE) {
+                    reason = "conflict";
+                } else if (code == TIMEOUT) {
+                    reason = "timeout";
+                } else if (code >= 200 && code < 300 && isSlow(endpoint, latency)) {
+                    reason = "latency";
+                }
+
+                if (reason != null) {
+                    // a single decrease per round trip, requests that were already in flight do not count again
+                    if (now - decreasedAt > latency) {
+                        limit = Math.max(1, limit * BACKOFF_RATIO);
+                        decreasedAt = now;
+                    }
+                    Metrics.throttle(host, reason);
+                } else if (code > 0 && saturated) {
+                    limit = Math.min(maxInFlight, limit + 1 / limit);
+                }
+                Metrics.concurrencyLimit(host, limit);
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            grant();
+        }
+
+        double getLimit() {
+            lock.lock();
+            try {
+                return limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // compares with the best latency of the endpoint, which drifts slowly towards slower samples
+        private boolean isSlow(String endpoint, long latency) {
+            Long baseline = baselines.get(endpoint);
+            if (baseline == null || latency < baseline) {
+                baselines.put(endpoint, latency);
+                return false;
+            }
+            baselines.put(endpoint, baseline + (latency - baseline) / 100);
+            return latency > Math.max(baseline * LATENCY_TOLERANCE, baseline + MIN_LATENCY_INCREASE);
+        }
+
+        private void refill(long now) {
+            if (requestsPerSecond > 0) {
+                tokens = Math.min(Math.max(1, requestsPerSecond), tokens + (now - refilledAt) * requestsPerSecond / TimeUnit.SECONDS.toNanos(1));
+            }
+            refilledAt = now;
+        }
+    }
+
+    // an asynchronous call waiting for a slot
+    private static class Reservation {
+        private final Object tag;
+        private final CompletableFuture<Void> slot = new CompletableFuture<>();
+
+        Reservation(Object tag) {
+            this.tag = tag;
+        }
+    }
+}
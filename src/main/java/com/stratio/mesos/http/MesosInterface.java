@@ -1,5 +1,6 @@
 package com.stratio.mesos.http;
 
+import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.*;
@@ -40,22 +41,52 @@ public interface MesosInterface {
     );
 
 
+    @Streaming
     @GET("/{endpointPrefix}/slaves")
     Call<ResponseBody> findResources(
             @Path("endpointPrefix") String endpointPrefix
     );
 
+    @Streaming
     @GET("/slaves")
     Call<ResponseBody> findResources();
 
+    @Streaming
+    @GET("/{endpointPrefix}/slaves")
+    Call<ResponseBody> findResources(
+            @Path("endpointPrefix") String endpointPrefix,
+            @Query("slave_id") String slaveId
+    );
+
+    @Streaming
+    @GET("/slaves")
+    Call<ResponseBody> findResourcesForSlave(
+            @Query("slave_id") String slaveId
+    );
+
+    @Streaming
     @GET("/{endpointPrefix}/frameworks")
     Call<ResponseBody> findFrameworks(
             @Path("endpointPrefix") String endpointPrefix
     );
 
+    @Streaming
     @GET("/frameworks")
     Call<ResponseBody> findFrameworks();
 
+    @Streaming
+    @GET("/{endpointPrefix}/frameworks")
+    Call<ResponseBody> findFrameworks(
+            @Path("endpointPrefix") String endpointPrefix,
+            @Query("framework_id") String frameworkId
+    );
+
+    @Streaming
+    @GET("/frameworks")
+    Call<ResponseBody> findFramework(
+            @Query("framework_id") String frameworkId
+    );
+
     @FormUrlEncoded
     @POST("/{endpointPrefix}/teardown")
     Call<ResponseBody> teardown(
@@ -69,4 +100,49 @@ public interface MesosInterface {
             @Field("frameworkId") String frameworkId
     );
 
+    @Headers("Accept: application/json")
+    @POST("/{endpointPrefix}/api/v1")
+    Call<ResponseBody> operator(
+            @Path("endpointPrefix") String endpointPrefix,
+            @Body RequestBody call
+    );
+
+    @Headers("Accept: application/json")
+    @POST("/api/v1")
+    Call<ResponseBody> operator(
+            @Body RequestBody call
+    );
+
+    // state calls (GET_FRAMEWORKS, GET_TASKS, GET_AGENTS), streamed into the state parser
+    @Streaming
+    @Headers("Accept: application/json")
+    @POST("/{endpointPrefix}/api/v1")
+    Call<ResponseBody> operatorState(
+            @Path("endpointPrefix") String endpointPrefix,
+            @Body RequestBody call
+    );
+
+    @Streaming
+    @Headers("Accept: application/json")
+    @POST("/api/v1")
+    Call<ResponseBody> operatorState(
+            @Body RequestBody call
+    );
+
+    // the same state calls protobuf encoded, answered 406 or 415 by masters that only speak JSON
+    @Streaming
+    @Headers("Accept: application/x-protobuf")
+    @POST("/{endpointPrefix}/api/v1")
+    Call<ResponseBody> operatorStateProtobuf(
+            @Path("endpointPrefix") String endpointPrefix,
+            @Body RequestBody call
+    );
+
+    @Streaming
+    @Headers("Accept: application/x-protobuf")
+    @POST("/api/v1")
+    Call<ResponseBody> operatorStateProtobuf(
+            @Body RequestBody call
+    );
+
 }
\ No newline at end of file
@@ -0,0 +1,57 @@
+package com.stratio.mesos.http;
+
+import com.stratio.mesos.metrics.Metrics;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records the latency and status code of every call in {@link Metrics}. Latency is measured until the response
+ * headers arrive, bodies are streamed afterwards and accounted in {@link TransferStats}
+ */
+public class MetricsInterceptor implements Interceptor {
+    // path prefixes followed by a service name, collapsed so every service shares the same endpoint
+    private static final Map<String, String> IDENTIFIERS = new LinkedHashMap<>();
+
+    static {
+        IDENTIFIERS.put("/exhibitor/v1/explorer/znode/", "{znode}");
+        IDENTIFIERS.put("/v2/apps/", "{app}");
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String host = request.url().host() + ":" + request.url().port();
+        String endpoint = endpoint(request.url());
+
+        long start = System.nanoTime();
+        try {
+            Response response = chain.proceed(request);
+            Metrics.observeRequest(host, request.method(), endpoint, String.valueOf(response.code()), System.nanoTime() - start);
+            return response;
+        } catch (IOException e) {
+            Metrics.observeRequest(host, request.method(), endpoint, "error", System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    /**
+     * @param url request url
+     * @return request path with service names replaced by a placeholder
+     */
+    static String endpoint(HttpUrl url) {
+        String path = url.encodedPath();
+        for (Map.Entry<String, String> identifier : IDENTIFIERS.entrySet()) {
+            int position = path.indexOf(identifier.getKey());
+            if (position >= 0) {
+                return path.substring(0, position + identifier.getKey().length()) + identifier.getValue();
+            }
+        }
+        return path;
+    }
+}
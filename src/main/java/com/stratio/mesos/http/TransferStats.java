@@ -0,0 +1,88 @@
+package com.stratio.mesos.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes received per endpoint by every client of the process, as they travel on the wire and once decompressed
+ */
+public class TransferStats {
+    private static final ConcurrentMap<String, Endpoint> ENDPOINTS = new ConcurrentHashMap<>();
+
+    private TransferStats() {
+    }
+
+    /**
+     * Accounts a response body that has been consumed
+     * @param endpoint request path
+     * @param compressedBytes bytes received from the server
+     * @param uncompressedBytes bytes handed to the caller
+     */
+    public static void record(String endpoint, long compressedBytes, long uncompressedBytes) {
+        Endpoint stats = ENDPOINTS.computeIfAbsent(endpoint, Endpoint::new);
+        stats.responses.increment();
+        stats.compressedBytes.add(compressedBytes);
+        stats.uncompressedBytes.add(uncompressedBytes);
+    }
+
+    /**
+     * @return accumulated stats, sorted by endpoint
+     */
+    public static List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(new ArrayList<>(new TreeMap<>(ENDPOINTS).values()));
+    }
+
+    /**
+     * Human readable summary, one line per endpoint
+     * @return report lines, empty if nothing was received
+     */
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (Endpoint endpoint : getEndpoints()) {
+            lines.add(String.format("%s: %d responses, %d bytes received, %d bytes uncompressed (%.1f%%)",
+                    endpoint.getName(), endpoint.getResponses(), endpoint.getCompressedBytes(), endpoint.getUncompressedBytes(),
+                    endpoint.getUncompressedBytes() == 0 ? 100.0 : 100.0 * endpoint.getCompressedBytes() / endpoint.getUncompressedBytes()));
+        }
+        return lines;
+    }
+
+    public static void reset() {
+        ENDPOINTS.clear();
+    }
+
+    /**
+     * Counters of a single endpoint
+     */
+    public static class Endpoint {
+        private final String name;
+        private final LongAdder responses = new LongAdder();
+        private final LongAdder compressedBytes = new LongAdder();
+        private final LongAdder uncompressedBytes = new LongAdder();
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getResponses() {
+            return responses.sum();
+        }
+
+        public long getCompressedBytes() {
+            return compressedBytes.sum();
+        }
+
+        public long getUncompressedBytes() {
+            return uncompressedBytes.sum();
+        }
+    }
+}
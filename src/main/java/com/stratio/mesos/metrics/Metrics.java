@@ -0,0 +1,367 @@
+package com.stratio.mesos.metrics;
+
+import com.stratio.mesos.http.TransferStats;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of every client of the process in the Prometheus text format, version 0.0.4.
+ * HTTP calls are recorded by {@link com.stratio.mesos.http.MetricsInterceptor}, API methods by {@link #time}
+ * and transferred bytes are taken from {@link TransferStats} when the metrics are rendered
+ */
+public class Metrics {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // seconds, from a warm lookup to a long unreserve on a slow master
+    private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private static final Histogram HTTP_DURATION = new Histogram("janithor_http_request_duration_seconds",
+            "Time until the response headers are received", "host", "method", "endpoint");
+    private static final Counter HTTP_RESPONSES = new Counter("janithor_http_responses_total",
+            "HTTP responses by status code, code=\"error\" when no response was received", "host", "method", "endpoint", "code");
+    private static final Gauge CONCURRENCY_LIMIT = new Gauge("janithor_http_concurrency_limit",
+            "Adaptive limit of requests in flight", "host");
+    private static final Counter THROTTLED = new Counter("janithor_http_throttled_total",
+            "Responses that made the concurrency limit decrease", "host", "reason");
+    private static final Counter RETRIES = new Counter("janithor_retries_total",
+            "Requests sent again after a rejected attempt", "operation", "reason");
+    private static final Histogram OPERATION_DURATION = new Histogram("janithor_operation_duration_seconds",
+            "Duration of the API methods, including every HTTP call they make", "api", "operation");
+    private static final Gauge LAST_RUN = new Gauge("janithor_last_run_timestamp_seconds",
+            "Time the last CLI operation finished", "operation");
+    private static final Gauge LAST_RUN_SUCCESS = new Gauge("janithor_last_run_success",
+            "1 if the last CLI operation succeeded, 0 otherwise", "operation");
+
+    private Metrics() {
+    }
+
+    /**
+     * Accounts an HTTP call
+     * @param host server host and port
+     * @param method HTTP method
+     * @param endpoint request path, without ids
+     * @param code status code or "error"
+     * @param nanos time until the response headers were received
+     */
+    public static void observeRequest(String host, String method, String endpoint, String code, long nanos) {
+        HTTP_DURATION.observe(seconds(nanos), host, method, endpoint);
+        HTTP_RESPONSES.increment(host, method, endpoint, code);
+    }
+
+    /**
+     * Publishes the current in-flight limit of a host
+     * @param host server host and port
+     * @param limit requests allowed in flight
+     */
+    public static void concurrencyLimit(String host, double limit) {
+        CONCURRENCY_LIMIT.set(limit, host);
+    }
+
+    /**
+     * Accounts a response taken as a sign of overload
+     * @param host server host and port
+     * @param reason overloaded, conflict, timeout or latency
+     */
+    public static void throttle(String host, String reason) {
+        THROTTLED.increment(host, reason);
+    }
+
+    /**
+     * Accounts a request sent again because the previous attempt was rejected
+     * @param operation operation being retried
+     * @param reason why the previous attempt was rejected
+     */
+    public static void retry(String operation, String reason) {
+        RETRIES.increment(operation, reason);
+    }
+
+    /**
+     * Runs an API method measuring its duration
+     * @param api mesos, marathon or exhibitor
+     * @param operation method name
+     * @param method method body
+     * @return method result
+     */
+    public static <T> T time(String api, String operation, Supplier<T> method) {
+        long start = System.nanoTime();
+        try {
+            return method.get();
+        } finally {
+            OPERATION_DURATION.observe(seconds(System.nanoTime() - start), api, operation);
+        }
+    }
+
+    /**
+     * Asynchronous version of {@link #time(String, String, Supplier)}, measured until the future completes
+     * @param api mesos, marathon or exhibitor
+     * @param operation method name
+     * @param method method body
+     * @return future method result
+     */
+    public static <T> CompletableFuture<T> timeAsync(String api, String operation, Supplier<CompletableFuture<T>> method) {
+        long start = System.nanoTime();
+        return method.get().whenComplete((result, e) ->
+                OPERATION_DURATION.observe(seconds(System.nanoTime() - start), api, operation));
+    }
+
+    /**
+     * Records the outcome of a CLI operation, so a scheduled job that stopped running or failing can be alerted on
+     * @param operation CLI operation
+     * @param success whether the operation succeeded
+     */
+    public static void recordRun(String operation, boolean success) {
+        LAST_RUN.set(System.currentTimeMillis() / 1000.0, operation);
+        LAST_RUN_SUCCESS.set(success ? 1 : 0, operation);
+    }
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        HTTP_DURATION.render(out);
+        HTTP_RESPONSES.render(out);
+        renderTransfers(out);
+        CONCURRENCY_LIMIT.render(out);
+        THROTTLED.render(out);
+        RETRIES.render(out);
+        OPERATION_DURATION.render(out);
+        LAST_RUN.render(out);
+        LAST_RUN_SUCCESS.render(out);
+        return out.toString();
+    }
+
+    /**
+     * Writes the metrics to a file, replacing it atomically so a collector never reads it half written
+     * (e.g. the node_exporter textfile collector, which expects the .prom extension)
+     * @param file destination file
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeTo(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, "metrics", ".tmp");
+        try {
+            Files.write(temporary, scrape().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    public static void reset() {
+        HTTP_DURATION.children.clear();
+        HTTP_RESPONSES.children.clear();
+        CONCURRENCY_LIMIT.children.clear();
+        THROTTLED.children.clear();
+        RETRIES.children.clear();
+        OPERATION_DURATION.children.clear();
+        LAST_RUN.children.clear();
+        LAST_RUN_SUCCESS.children.clear();
+    }
+
+    private static void renderTransfers(StringBuilder out) {
+        List<TransferStats.Endpoint> endpoints = TransferStats.getEndpoints();
+        header(out, "janithor_http_received_bytes_total", "Response bytes received from the server", "counter");
+        for (TransferStats.Endpoint endpoint : endpoints) {
+            sample(out, "janithor_http_received_bytes_total", Collections.singletonList("endpoint"),
+                    Collections.singletonList(endpoint.getName()), endpoint.getCompressedBytes());
+        }
+        header(out, "janithor_http_decoded_bytes_total", "Response bytes once decompressed", "counter");
+        for (TransferStats.Endpoint endpoint : endpoints) {
+            sample(out, "janithor_http_decoded_bytes_total", Collections.singletonList("endpoint"),
+                    Collections.singletonList(endpoint.getName()), endpoint.getUncompressedBytes());
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, List<String> labels, List<String> values, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{');
+            for (int i = 0; i < labels.size(); i++) {
+                if (i > 0) out.append(',');
+                out.append(labels.get(i)).append("=\"").append(escape(values.get(i))).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String escape(String value) {
+        return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String format(double value) {
+        if (value == Double.POSITIVE_INFINITY) return "+Inf";
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private static List<String> with(List<String> list, String element) {
+        List<String> result = new ArrayList<>(list);
+        result.add(element);
+        return result;
+    }
+
+    // a metric and its children, one per combination of label values, rendered sorted
+    private abstract static class Family<C> {
+        final String name;
+        final String help;
+        final List<String> labels;
+        final ConcurrentMap<List<String>, C> children = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String... labels) {
+            this.name = name;
+            this.help = help;
+            this.labels = Arrays.asList(labels);
+        }
+
+        C child(String... values) {
+            return children.computeIfAbsent(Arrays.asList(values), key -> newChild());
+        }
+
+        void render(StringBuilder out) {
+            header(out, name, help, type());
+            Map<String, Map.Entry<List<String>, C>> sorted = new TreeMap<>();
+            children.entrySet().forEach(entry -> sorted.put(entry.getKey().toString(), entry));
+            sorted.values().forEach(entry -> render(out, entry.getKey(), entry.getValue()));
+        }
+
+        abstract C newChild();
+
+        abstract String type();
+
+        abstract void render(StringBuilder out, List<String> values, C child);
+    }
+
+    private static class Counter extends Family<LongAdder> {
+        Counter(String name, String help, String... labels) {
+            super(name, help, labels);
+        }
+
+        void increment(String... values) {
+            child(values).increment();
+        }
+
+        @Override
+        LongAdder newChild() {
+            return new LongAdder();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void render(StringBuilder out, List<String> values, LongAdder child) {
+            sample(out, name, labels, values, child.sum());
+        }
+    }
+
+    private static class Gauge extends Family<double[]> {
+        Gauge(String name, String help, String... labels) {
+            super(name, help, labels);
+        }
+
+        void set(double value, String... values) {
+            children.put(Arrays.asList(values), new double[]{value});
+        }
+
+        @Override
+        double[] newChild() {
+            return new double[1];
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void render(StringBuilder out, List<String> values, double[] child) {
+            sample(out, name, labels, values, child[0]);
+        }
+    }
+
+    private static class Histogram extends Family<Histogram.Child> {
+        Histogram(String name, String help, String... labels) {
+            super(name, help, labels);
+        }
+
+        void observe(double value, String... values) {
+            Child child = child(values);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (value <= BUCKETS[i]) {
+                    child.buckets[i].increment();
+                    break;
+                }
+            }
+            child.sum.add(value);
+            child.count.increment();
+        }
+
+        @Override
+        Child newChild() {
+            return new Child();
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void render(StringBuilder out, List<String> values, Child child) {
+            // read the count first, so buckets are never behind it while observations keep arriving
+            long count = child.count.sum();
+            List<String> bucketLabels = with(labels, "le");
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += child.buckets[i].sum();
+                sample(out, name + "_bucket", bucketLabels, with(values, format(BUCKETS[i])), Math.min(cumulative, count));
+            }
+            sample(out, name + "_bucket", bucketLabels, with(values, "+Inf"), count);
+            sample(out, name + "_sum", labels, values, child.sum.sum());
+            sample(out, name + "_count", labels, values, count);
+        }
+
+        static class Child {
+            final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+            final DoubleAdder sum = new DoubleAdder();
+            final LongAdder count = new LongAdder();
+
+            Child() {
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new LongAdder();
+                }
+            }
+        }
+    }
+}
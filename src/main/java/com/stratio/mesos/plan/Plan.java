@@ -0,0 +1,226 @@
+package com.stratio.mesos.plan;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Dependency graph of cleanup steps. Every step starts as soon as the steps it depends on have succeeded,
+ * so independent branches run concurrently. When a step fails, the steps depending on it are skipped
+ */
+public class Plan {
+    private static final Logger LOG = LoggerFactory.getLogger(Plan.class);
+
+    private final String name;
+    private final List<Step> steps = new ArrayList<>();
+
+    public Plan(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adds a step, dependencies must have been added before, so the plan cannot have cycles
+     * @param description what the step does
+     * @param action step work, returning whether it succeeded and adding the lines to report
+     * @param dependencies steps that must succeed before this one starts
+     * @return added step
+     */
+    public Step add(String description, Action action, Step... dependencies) {
+        return add(description, action, Arrays.asList(dependencies));
+    }
+
+    /**
+     * @see #add(String, Action, Step...)
+     */
+    public Step add(String description, Action action, List<Step> dependencies) {
+        for (Step dependency : dependencies) {
+            if (dependency.plan != this) {
+                throw new IllegalArgumentException("Step " + dependency + " does not belong to plan " + name);
+            }
+        }
+        Step step = new Step(this, steps.size() + 1, description, action, dependencies);
+        steps.add(step);
+        return step;
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * @return one line per step, with the steps it waits for
+     */
+    public String describe() {
+        StringBuilder plan = new StringBuilder("Plan ").append(name).append(": ").append(steps.size()).append(" steps");
+        for (Step step : steps) {
+            plan.append("\n  ").append(step);
+            if (!step.dependencies.isEmpty()) {
+                plan.append(" after ").append(step.dependencies.stream()
+                        .map(dependency -> String.valueOf(dependency.id))
+                        .collect(Collectors.joining(", ")));
+            }
+        }
+        return plan.toString();
+    }
+
+    /**
+     * Runs every step, at most parallelism at the same time, and waits for all of them
+     * @param parallelism steps running concurrently
+     * @param output receives the lines of every step as a block, once it finishes
+     * @return outcome of every step, in plan order
+     */
+    public Report run(int parallelism, Consumer<String> output) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        long start = System.nanoTime();
+        try {
+            List<CompletableFuture<Status>> futures = new ArrayList<>(steps.size());
+            for (Step step : steps) {
+                CompletableFuture<?>[] dependencies = step.dependencies.stream()
+                        .map(dependency -> futures.get(dependency.id - 1))
+                        .toArray(CompletableFuture[]::new);
+                futures.add(CompletableFuture.allOf(dependencies)
+                        .thenApplyAsync(ignored -> run(step, dependencies, output), executor));
+            }
+
+            Report report = new Report(name);
+            for (int i = 0; i < steps.size(); i++) {
+                report.add(steps.get(i), futures.get(i).join());
+            }
+            report.elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            return report;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Status run(Step step, CompletableFuture<?>[] dependencies, Consumer<String> output) {
+        for (CompletableFuture<?> dependency : dependencies) {
+            if (dependency.join() != Status.OK) {
+                return Status.SKIPPED;
+            }
+        }
+
+        List<String> lines = new ArrayList<>();
+        long start = System.nanoTime();
+        Status status;
+        try {
+            status = step.action.run(lines) ? Status.OK : Status.FAILED;
+        } catch (RuntimeException e) {
+            LOG.info("Step " + step + " failed with message " + e.getMessage());
+            status = Status.FAILED;
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        StringBuilder block = new StringBuilder(step.toString()).append(": ").append(status).append(" (").append(elapsed).append(" ms)");
+        lines.forEach(line -> block.append("\n  ").append(line));
+        synchronized (this) {
+            output.accept(block.toString());
+        }
+        return status;
+    }
+
+    /**
+     * Work of a step
+     */
+    @FunctionalInterface
+    public interface Action {
+        /**
+         * @param lines lines to report once the step finishes
+         * @return whether the step succeeded
+         */
+        boolean run(List<String> lines);
+    }
+
+    public enum Status {
+        OK, FAILED, SKIPPED
+    }
+
+    /**
+     * A node of the plan
+     */
+    public static class Step {
+        private final Plan plan;
+        private final int id;
+        private final String description;
+        private final Action action;
+        private final List<Step> dependencies;
+
+        private Step(Plan plan, int id, String description, Action action, List<Step> dependencies) {
+            this.plan = plan;
+            this.id = id;
+            this.description = description;
+            this.action = action;
+            this.dependencies = Collections.unmodifiableList(new ArrayList<>(dependencies));
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public List<Step> getDependencies() {
+            return dependencies;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + id + "] " + description;
+        }
+    }
+
+    /**
+     * Outcome of every step of a plan run
+     */
+    public static class Report {
+        private final String name;
+        private final List<String> lines = new ArrayList<>();
+        private final List<Status> statuses = new ArrayList<>();
+        private long elapsed;
+
+        Report(String name) {
+            this.name = name;
+        }
+
+        void add(Step step, Status status) {
+            lines.add(step + ": " + status);
+            statuses.add(status);
+        }
+
+        public int count(Status status) {
+            return Collections.frequency(statuses, status);
+        }
+
+        public List<Status> getStatuses() {
+            return Collections.unmodifiableList(statuses);
+        }
+
+        public boolean isSuccessful() {
+            return count(Status.OK) == statuses.size();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder summary = new StringBuilder("Plan ").append(name).append(" summary: ")
+                    .append(statuses.size()).append(" steps, ")
+                    .append(count(Status.OK)).append(" succeeded, ")
+                    .append(count(Status.FAILED)).append(" failed, ")
+                    .append(count(Status.SKIPPED)).append(" skipped in ")
+                    .append(elapsed).append(" ms");
+            lines.forEach(line -> summary.append("\n  ").append(line));
+            return summary.toString();
+        }
+    }
+}
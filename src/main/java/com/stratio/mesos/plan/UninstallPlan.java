@@ -0,0 +1,100 @@
+package com.stratio.mesos.plan;
+
+import com.stratio.mesos.api.ExhibitorApi;
+import com.stratio.mesos.api.MarathonApi;
+import com.stratio.mesos.api.MesosApi;
+import com.stratio.mesos.http.HTTPUtils;
+import com.stratio.mesos.state.Resource;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the plan of a full service uninstall:
+ * <pre>
+ * marathon destroy -+- teardown framework -- unreserve slave (one per slave of the framework)
+ *                    +- exhibitor delete
+ * </pre>
+ * The scheduler is destroyed first so it does not register the framework again; an app that is already gone counts
+ * as destroyed, so a half finished uninstall can be run again. Frameworks and their slaves are
+ * looked up while the plan is built, since a torn down framework no longer lists its slaves. A slave shared by
+ * several frameworks of the service is unreserved once, after all of them are torn down.
+ * Without a role the service name is taken as a framework id, as in the CLI, and nothing is unreserved
+ */
+public class UninstallPlan {
+    // steps running at the same time when no parallelism is given
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private UninstallPlan() {
+    }
+
+    /**
+     * @param mesos mesos client, used to look up frameworks and slaves now and to tear down and unreserve later
+     * @param marathon marathon client
+     * @param exhibitor exhibitor client
+     * @param principal framework principal
+     * @param role framework role, null to take serviceName as a framework id
+     * @param serviceName marathon app and framework name
+     * @param znode exhibitor znode of the service
+     * @param active active/inactive frameworks
+     * @return uninstall plan, ready to describe or run
+     * @throws IllegalArgumentException if the znode is not a service znode, checked before anything runs
+     */
+    public static Plan build(MesosApi mesos, MarathonApi marathon, ExhibitorApi exhibitor,
+                             String principal, String role, String serviceName, String znode, boolean active) {
+        ExhibitorApi.checkZnode(znode);
+        Plan plan = new Plan("uninstall " + serviceName);
+        Plan.Step destroy = plan.add("marathon destroy " + serviceName, lines -> destroy(marathon, serviceName, lines));
+
+        String[] frameworkIds = role == null
+                ? new String[]{serviceName}
+                : mesos.findFrameworkId(serviceName, role, principal, active).orElse(new String[]{});
+
+        // slaves in discovery order, each one with the teardowns it waits for
+        Map<String, List<Plan.Step>> slaves = new LinkedHashMap<>();
+        for (String frameworkId : frameworkIds) {
+            Plan.Step teardown = plan.add("teardown framework " + frameworkId, lines -> mesos.teardown(frameworkId), destroy);
+            if (role != null) {
+                for (String slaveId : mesos.findSlavesForFramework(frameworkId).orElse(new String[]{})) {
+                    slaves.computeIfAbsent(slaveId, id -> new ArrayList<>()).add(teardown);
+                }
+            }
+        }
+        slaves.forEach((slaveId, teardowns) ->
+                plan.add("unreserve slave " + slaveId + " for role " + role, lines -> unreserve(mesos, role, slaveId, lines), teardowns));
+
+        plan.add("exhibitor delete " + znode, lines -> {
+            ExhibitorApi.DeleteReport report = exhibitor.deleteRecursively(znode, ExhibitorApi.DEFAULT_PARALLELISM);
+            lines.add(report.toString());
+            return report.isSucceeded();
+        }, destroy);
+        return plan;
+    }
+
+    private static boolean destroy(MarathonApi marathon, String serviceName, List<String> lines) {
+        MarathonApi.Destroyed destroyed = marathon.destroyApp(serviceName);
+        if (destroyed == MarathonApi.Destroyed.ABSENT) {
+            lines.add("App " + serviceName + " not found, already destroyed");
+        }
+        return destroyed == MarathonApi.Destroyed.DESTROYED || destroyed == MarathonApi.Destroyed.ABSENT;
+    }
+
+    // reservations and volumes of the role are looked up once the frameworks are gone
+    private static boolean unreserve(MesosApi mesos, String role, String slaveId, List<String> lines) {
+        List<Resource> resources = mesos.findReservationsFor(role, slaveId);
+        if (resources == null) {
+            lines.add("Unable to find resources on slave " + slaveId);
+            return false;
+        }
+
+        boolean unreserved = true;
+        int[] codes = mesos.unreserve(slaveId, resources);
+        for (int i = 0; i < resources.size(); i++) {
+            lines.add("Janithor " + resources.get(i) + ": " + codes[i]);
+            unreserved &= (codes[i] == HTTPUtils.HTTP_OK_CODE || codes[i] == HTTPUtils.UNRESERVE_OK_CODE);
+        }
+        return unreserved;
+    }
+}
@@ -0,0 +1,299 @@
+package com.stratio.mesos.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.stratio.mesos.api.ExhibitorApi;
+import com.stratio.mesos.api.MarathonApi;
+import com.stratio.mesos.api.MesosApi;
+import com.stratio.mesos.http.HTTPUtils;
+import com.stratio.mesos.metrics.Metrics;
+import com.stratio.mesos.state.Resource;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-running janithor exposing the CLI operations as REST endpoints.
+ * Clients and the cluster snapshot live as long as the server, so every request is answered with warm connections
+ * and, for lookups, with the cached master state. Mutating operations discard the snapshot once they finish.
+ * <pre>
+ * GET  /lookup?framework=&amp;principal=&amp;role=&amp;active=
+ * GET  /resources?framework=&amp;principal=&amp;role=&amp;active=
+ * POST /teardown?framework=&amp;principal=&amp;role=&amp;active=
+ * POST /unreserve?framework=&amp;principal=&amp;role=&amp;active=
+ * POST /exhibitor?znode=
+ * POST /marathon?framework=
+ * GET  /metrics
+ * </pre>
+ * As in the CLI, when no role is given the framework parameter is taken as a framework id.
+ * /metrics answers with the {@link Metrics} of the process in the Prometheus text format.
+ * POST endpoints run with the credentials of the server, so they require the shared token in the
+ * {@value #TOKEN_HEADER} header; the server listens on loopback unless another address is given
+ */
+public class JanithorServer {
+    private static final Logger LOG = LoggerFactory.getLogger(JanithorServer.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int HANDLER_THREADS = 8;
+
+    public static final String TOKEN_HEADER = "X-Janithor-Token";
+    public static final String DEFAULT_BIND = "127.0.0.1";
+
+    private final MesosApi mesos;
+    private final ExhibitorApi exhibitor;
+    private final MarathonApi marathon;
+    private final byte[] token;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * @param mesos mesos client
+     * @param exhibitor exhibitor client
+     * @param marathon marathon client
+     * @param token shared token required by the POST endpoints
+     */
+    public JanithorServer(MesosApi mesos, ExhibitorApi exhibitor, MarathonApi marathon, String token) {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("A server token is required");
+        }
+        this.mesos = mesos;
+        this.exhibitor = exhibitor;
+        this.marathon = marathon;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts listening on loopback only
+     * @param port listening port, 0 picks a free one
+     * @throws IOException if the port cannot be bound
+     */
+    public void start(int port) throws IOException {
+        start(DEFAULT_BIND, port);
+    }
+
+    /**
+     * @param bind listening address, 0.0.0.0 for every interface
+     * @param port listening port, 0 picks a free one
+     * @throws IOException if the address cannot be resolved or the port cannot be bound
+     */
+    public synchronized void start(String bind, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(bind), port), 0);
+        executor = Executors.newFixedThreadPool(HANDLER_THREADS);
+        server.setExecutor(executor);
+        server.createContext("/lookup", exchange -> handle(exchange, "GET", this::lookup));
+        server.createContext("/resources", exchange -> handle(exchange, "GET", this::resources));
+        server.createContext("/teardown", exchange -> handle(exchange, "POST", this::teardown));
+        server.createContext("/unreserve", exchange -> handle(exchange, "POST", this::unreserve));
+        server.createContext("/exhibitor", exchange -> handle(exchange, "POST", this::exhibitor));
+        server.createContext("/marathon", exchange -> handle(exchange, "POST", this::marathon));
+        server.createContext("/metrics", this::metrics);
+        server.start();
+        LOG.info("Janithor server listening on {}:{}", bind, getPort());
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    public synchronized int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private ObjectNode lookup(Map<String, String> params) {
+        ObjectNode result = MAPPER.createObjectNode();
+        String[] frameworkIds = mesos.findFrameworkId(params.get("framework"), params.get("role"), params.get("principal"), isActive(params))
+                .orElse(new String[]{});
+        ArrayNode ids = result.putArray("frameworkIds");
+        Arrays.stream(frameworkIds).forEach(ids::add);
+        result.put("success", frameworkIds.length > 0);
+        return result;
+    }
+
+    private ObjectNode resources(Map<String, String> params) {
+        ObjectNode result = MAPPER.createObjectNode();
+        String[] frameworkIds = findFrameworkIds(params);
+        ObjectNode frameworks = result.putObject("frameworks");
+        for (String frameworkId : frameworkIds) {
+            ObjectNode slaves = frameworks.putObject(frameworkId);
+            for (String slaveId : mesos.findSlavesForFramework(frameworkId).orElse(new String[]{})) {
+                ArrayNode resources = slaves.putArray(slaveId);
+                List<Resource> found = mesos.findReservationsFor(params.get("role"), slaveId);
+                if (found != null) {
+                    found.forEach(resource -> resources.add(resource.getJson()));
+                }
+            }
+        }
+        result.put("success", frameworkIds.length > 0);
+        return result;
+    }
+
+    private ObjectNode teardown(Map<String, String> params) {
+        ObjectNode result = MAPPER.createObjectNode();
+        String[] frameworkIds = findFrameworkIds(params);
+        ObjectNode frameworks = result.putObject("frameworks");
+        boolean tornDown = frameworkIds.length > 0;
+        for (String frameworkId : frameworkIds) {
+            boolean teardown = mesos.teardown(frameworkId);
+            frameworks.put(frameworkId, teardown);
+            tornDown &= teardown;
+        }
+        mesos.refreshSnapshot();
+        result.put("success", tornDown);
+        return result;
+    }
+
+    private ObjectNode unreserve(Map<String, String> params) {
+        ObjectNode result = MAPPER.createObjectNode();
+        String role = params.get("role");
+        String[] frameworkIds = findFrameworkIds(params);
+        ObjectNode frameworks = result.putObject("frameworks");
+        boolean unreserved = frameworkIds.length > 0;
+        for (String frameworkId : frameworkIds) {
+            ObjectNode slaves = frameworks.putObject(frameworkId);
+            for (String slaveId : mesos.findSlavesForFramework(frameworkId).orElse(new String[]{})) {
+                ArrayNode codes = slaves.putArray(slaveId);
+                List<Resource> resources = mesos.findReservationsFor(role, slaveId);
+                if (resources == null) {
+                    unreserved = false;
+                    continue;
+                }
+
+                int[] results = mesos.unreserve(slaveId, resources);
+                for (int i = 0; i < resources.size(); i++) {
+                    codes.addObject()
+                            .put("code", results[i])
+                            .set("resource", resources.get(i).getJson());
+                    unreserved &= (results[i] == HTTPUtils.HTTP_OK_CODE || results[i] == HTTPUtils.UNRESERVE_OK_CODE);
+                }
+            }
+        }
+        mesos.refreshSnapshot();
+        result.put("success", unreserved);
+        return result;
+    }
+
+    private ObjectNode exhibitor(Map<String, String> params) {
+        String znode = params.containsKey("znode") ? params.get("znode") : params.get("framework");
+        ExhibitorApi.DeleteReport report = exhibitor.deleteRecursively(znode, ExhibitorApi.DEFAULT_PARALLELISM);
+        return MAPPER.createObjectNode()
+                .put("deleted", report.getDeleted())
+                .put("failed", report.getFailed())
+                .put("unlisted", report.getUnlisted())
+                .put("success", report.isSucceeded());
+    }
+
+    private ObjectNode marathon(Map<String, String> params) {
+        return MAPPER.createObjectNode().put("success", marathon.destroy(params.get("framework")));
+    }
+
+    private String[] findFrameworkIds(Map<String, String> params) {
+        if (params.get("role") == null) {
+            return new String[]{params.get("framework")};
+        }
+        return mesos.findFrameworkId(params.get("framework"), params.get("role"), params.get("principal"), isActive(params))
+                .orElse(new String[]{});
+    }
+
+    private static boolean isActive(Map<String, String> params) {
+        return !params.containsKey("active") || Boolean.valueOf(params.get("active"));
+    }
+
+    private void handle(HttpExchange exchange, String method, Operation operation) throws IOException {
+        int status;
+        ObjectNode body;
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            if (!method.equals(exchange.getRequestMethod())) {
+                status = 405;
+                body = error("Method " + exchange.getRequestMethod() + " not allowed, use " + method);
+            } else if ("POST".equals(method) && !isAuthorized(exchange)) {
+                status = 401;
+                body = error("Missing or invalid " + TOKEN_HEADER + " header");
+            } else if (!params.containsKey("framework") && !params.containsKey("znode")) {
+                status = 400;
+                body = error("Parameter 'framework' is required");
+            } else {
+                body = operation.run(params);
+                status = 200;
+            }
+        } catch (IllegalArgumentException e) {
+            status = 400;
+            body = error(e.getMessage());
+        } catch (Exception e) {
+            LOG.info("Request " + exchange.getRequestURI() + " failed with message " + e.getMessage());
+            status = 500;
+            body = error(String.valueOf(e.getMessage()));
+        }
+
+        byte[] response = MAPPER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private void metrics(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+
+        byte[] response = Metrics.scrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", Metrics.CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    // constant time comparison, the token is not leaked through response times
+    private boolean isAuthorized(HttpExchange exchange) {
+        String presented = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        return presented != null && MessageDigest.isEqual(token, presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ObjectNode error(String message) {
+        return MAPPER.createObjectNode().put("success", false).put("error", message);
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            String name = separator < 0 ? pair : pair.substring(0, separator);
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return params;
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        ObjectNode run(Map<String, String> params) throws IOException;
+    }
+}
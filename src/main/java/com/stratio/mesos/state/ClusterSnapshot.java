@@ -0,0 +1,256 @@
+package com.stratio.mesos.state;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory copy of the mesos master state shared by all the lookups of a run.
+ * Every endpoint is downloaded the first time it is needed, indexed and kept until {@link #refresh()} is called
+ * or, when a maximum age is set, until it gets older than that.
+ * Concurrent lookups, blocking or asynchronous, share the same in-flight download.
+ * Single frameworks and slaves requested with a master-side filter are cached the same way, one entry per id
+ */
+public class ClusterSnapshot {
+
+    private final StateLoader<FrameworkIndex> frameworksLoader;
+    private final AsyncStateLoader<FrameworkIndex> asyncFrameworksLoader;
+    private final StateLoader<ReservationIndex> slavesLoader;
+    private final AsyncStateLoader<ReservationIndex> asyncSlavesLoader;
+    private final CachedDocument<FrameworkIndex> frameworks = new CachedDocument<>();
+    private final CachedDocument<ReservationIndex> slaves = new CachedDocument<>();
+    private final Map<String, CachedDocument<FrameworkIndex>> frameworksById = new ConcurrentHashMap<>();
+    private final Map<String, CachedDocument<ReservationIndex>> slavesById = new ConcurrentHashMap<>();
+    private volatile long maxAgeNanos = 0;
+
+    public ClusterSnapshot(StateLoader<FrameworkIndex> frameworksLoader, StateLoader<ReservationIndex> slavesLoader) {
+        this(frameworksLoader, async(frameworksLoader), slavesLoader, async(slavesLoader));
+    }
+
+    public ClusterSnapshot(StateLoader<FrameworkIndex> frameworksLoader, AsyncStateLoader<FrameworkIndex> asyncFrameworksLoader,
+                           StateLoader<ReservationIndex> slavesLoader, AsyncStateLoader<ReservationIndex> asyncSlavesLoader) {
+        this.frameworksLoader = frameworksLoader;
+        this.asyncFrameworksLoader = asyncFrameworksLoader;
+        this.slavesLoader = slavesLoader;
+        this.asyncSlavesLoader = asyncSlavesLoader;
+    }
+
+    /**
+     * Returns the indexed /frameworks document, fetching it from the master only on first access
+     * @return frameworks index or null if it could not be fetched
+     * @throws IOException if the master could not be reached
+     */
+    public FrameworkIndex getFrameworks() throws IOException {
+        return frameworks.get(frameworksLoader);
+    }
+
+    /**
+     * Asynchronous version of {@link #getFrameworks()}
+     * @return future frameworks index, completed with null if it could not be fetched
+     */
+    public CompletableFuture<FrameworkIndex> getFrameworksAsync() {
+        return frameworks.getAsync(asyncFrameworksLoader);
+    }
+
+    /**
+     * Returns the indexed /slaves document, fetching it from the master only on first access
+     * @return reservations index or null if it could not be fetched
+     * @throws IOException if the master could not be reached
+     */
+    public ReservationIndex getSlaves() throws IOException {
+        return slaves.get(slavesLoader);
+    }
+
+    /**
+     * Asynchronous version of {@link #getSlaves()}
+     * @return future reservations index, completed with null if it could not be fetched
+     */
+    public CompletableFuture<ReservationIndex> getSlavesAsync() {
+        return slaves.getAsync(asyncSlavesLoader);
+    }
+
+    /**
+     * Returns the index of a single framework requested with ?framework_id=, fetching it only on first access
+     * @param frameworkId requested framework
+     * @param loader filtered request, returning null when the master rejects the filter
+     * @return frameworks index or null if it could not be fetched
+     * @throws IOException if the master could not be reached
+     */
+    public FrameworkIndex getFramework(String frameworkId, StateLoader<FrameworkIndex> loader) throws IOException {
+        return frameworksById.computeIfAbsent(frameworkId, id -> new CachedDocument<>()).get(loader);
+    }
+
+    /**
+     * Asynchronous version of {@link #getFramework(String, StateLoader)}
+     */
+    public CompletableFuture<FrameworkIndex> getFrameworkAsync(String frameworkId, AsyncStateLoader<FrameworkIndex> loader) {
+        return frameworksById.computeIfAbsent(frameworkId, id -> new CachedDocument<>()).getAsync(loader);
+    }
+
+    /**
+     * Returns the index of a single slave requested with ?slave_id=, fetching it only on first access
+     * @param slaveId requested slave
+     * @param loader filtered request, returning null when the master rejects the filter
+     * @return reservations index or null if it could not be fetched
+     * @throws IOException if the master could not be reached
+     */
+    public ReservationIndex getSlave(String slaveId, StateLoader<ReservationIndex> loader) throws IOException {
+        return slavesById.computeIfAbsent(slaveId, id -> new CachedDocument<>()).get(loader);
+    }
+
+    /**
+     * Asynchronous version of {@link #getSlave(String, StateLoader)}
+     */
+    public CompletableFuture<ReservationIndex> getSlaveAsync(String slaveId, AsyncStateLoader<ReservationIndex> loader) {
+        return slavesById.computeIfAbsent(slaveId, id -> new CachedDocument<>()).getAsync(loader);
+    }
+
+    /**
+     * @return true if the /frameworks document is cached or being downloaded, so lookups on it are free
+     */
+    public boolean hasFrameworks() {
+        return frameworks.isPresent();
+    }
+
+    /**
+     * @return true if the /slaves document is cached or being downloaded, so lookups on it are free
+     */
+    public boolean hasSlaves() {
+        return slaves.isPresent();
+    }
+
+    /**
+     * Caches a complete /frameworks document obtained outside of the snapshot
+     * @param index indexed frameworks
+     */
+    public void putFrameworks(FrameworkIndex index) {
+        frameworks.put(index);
+    }
+
+    /**
+     * Caches a complete /slaves document obtained outside of the snapshot
+     * @param index indexed reservations
+     */
+    public void putSlaves(ReservationIndex index) {
+        slaves.put(index);
+    }
+
+    /**
+     * Sets how long a downloaded document is served before it is fetched again from the master
+     * @param maxAge maximum age, 0 keeps the documents until {@link #refresh()} is called
+     * @param unit maxAge unit
+     */
+    public void setMaxAge(long maxAge, TimeUnit unit) {
+        this.maxAgeNanos = unit.toNanos(maxAge);
+    }
+
+    /**
+     * Discards every cached document so the next lookup fetches them again from the master
+     */
+    public void refresh() {
+        frameworks.clear();
+        slaves.clear();
+        frameworksById.clear();
+        slavesById.clear();
+    }
+
+    // runs a blocking loader on the common pool, for snapshots built without an asynchronous loader
+    private static <T> AsyncStateLoader<T> async(StateLoader<T> loader) {
+        return () -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return loader.load();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Fetches one of the master state documents. Returning null means the document is not available
+     * and it will be requested again on the next access
+     */
+    @FunctionalInterface
+    public interface StateLoader<T> {
+        T load() throws IOException;
+    }
+
+    /**
+     * Asynchronous version of {@link StateLoader}
+     */
+    @FunctionalInterface
+    public interface AsyncStateLoader<T> {
+        CompletableFuture<T> load();
+    }
+
+    private class CachedDocument<T> {
+        private CompletableFuture<T> document;
+        private long requestedAt;
+
+        T get(StateLoader<T> loader) throws IOException {
+            CompletableFuture<T> current;
+            boolean owner = false;
+            synchronized (this) {
+                if (!isUsable(document)) {
+                    document = new CompletableFuture<>();
+                    requestedAt = System.nanoTime();
+                    owner = true;
+                }
+                current = document;
+            }
+
+            // the caller that started the download runs the loader on its own thread
+            if (owner) {
+                try {
+                    current.complete(loader.load());
+                } catch (IOException | RuntimeException e) {
+                    current.completeExceptionally(e);
+                }
+            }
+
+            try {
+                return current.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the cluster state");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+
+        synchronized CompletableFuture<T> getAsync(AsyncStateLoader<T> asyncLoader) {
+            if (!isUsable(document)) {
+                requestedAt = System.nanoTime();
+                document = asyncLoader.load();
+            }
+            return document;
+        }
+
+        synchronized boolean isPresent() {
+            return isUsable(document);
+        }
+
+        synchronized void put(T value) {
+            requestedAt = System.nanoTime();
+            document = CompletableFuture.completedFuture(value);
+        }
+
+        synchronized void clear() {
+            document = null;
+        }
+
+        // failed, empty or expired downloads are retried on the next access
+        private boolean isUsable(CompletableFuture<?> document) {
+            return document != null
+                    && !document.isCompletedExceptionally()
+                    && !(document.isDone() && document.join() == null)
+                    && !(maxAgeNanos > 0 && document.isDone() && System.nanoTime() - requestedAt > maxAgeNanos);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.stratio.mesos.state;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Mesos framework as found in the master state, with the distinct agents where its tasks ran
+ */
+public class Framework {
+    private final String id;
+    private final String name;
+    private final String role;
+    private final String principal;
+    private final boolean active;
+    private final boolean completed;
+    private final Set<String> agentIds;
+
+    public Framework(String id, String name, String role, String principal, boolean active, boolean completed, Set<String> agentIds) {
+        this.id = id;
+        this.name = name;
+        this.role = role;
+        this.principal = principal;
+        this.active = active;
+        this.completed = completed;
+        this.agentIds = Collections.unmodifiableSet(agentIds);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public String getPrincipal() {
+        return principal;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return true if the framework was found in the completed_frameworks section
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return distinct agent ids, in the order they were first seen
+     */
+    public Set<String> getAgentIds() {
+        return agentIds;
+    }
+}
@@ -0,0 +1,137 @@
+package com.stratio.mesos.state;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Typed view of the /frameworks document indexed for constant time lookups:
+ * (name, role, principal, active) to framework ids and framework id to distinct agent ids
+ */
+public class FrameworkIndex {
+    private final List<Framework> frameworks = new ArrayList<>();
+
+    // (name, role, principal, active) -> frameworks
+    private final Map<List<Object>, List<Framework>> byTriple = new HashMap<>();
+    // (name, role, principal) -> completed frameworks, whatever their active flag
+    private final Map<List<Object>, List<Framework>> completedByTriple = new HashMap<>();
+    // framework id -> distinct agent ids
+    private final Map<String, Set<String>> agents = new HashMap<>();
+    private final Map<String, Set<String>> completedAgents = new HashMap<>();
+
+    /**
+     * Builds the index from a /frameworks document, as returned by {@link StateParser#parseFrameworks}
+     * @param state frameworks document
+     * @return the index
+     */
+    public static FrameworkIndex from(JsonNode state) {
+        FrameworkIndex index = new FrameworkIndex();
+        for (JsonNode framework : state.path("frameworks")) {
+            index.add(toFramework(framework, "tasks", false));
+        }
+        for (JsonNode framework : state.path("completed_frameworks")) {
+            index.add(toFramework(framework, "completed_tasks", true));
+        }
+        return index;
+    }
+
+    /**
+     * Registers a framework in every index
+     * @param framework framework to add
+     */
+    public void add(Framework framework) {
+        frameworks.add(framework);
+        if (framework.isCompleted()) {
+            completedByTriple.computeIfAbsent(key(framework.getName(), framework.getRole(), framework.getPrincipal()), k -> new ArrayList<>())
+                    .add(framework);
+            completedAgents.computeIfAbsent(framework.getId(), k -> new LinkedHashSet<>()).addAll(framework.getAgentIds());
+        } else {
+            byTriple.computeIfAbsent(key(framework.getName(), framework.getRole(), framework.getPrincipal(), framework.isActive()), k -> new ArrayList<>())
+                    .add(framework);
+            agents.computeIfAbsent(framework.getId(), k -> new LinkedHashSet<>()).addAll(framework.getAgentIds());
+        }
+    }
+
+    /**
+     * Finds the running frameworks matching the given name, role, principal and activation status
+     * @return framework ids, empty if none matches
+     */
+    public List<String> findFrameworkIds(String name, String role, String principal, boolean active) {
+        return ids(byTriple.get(key(name, role, principal, active)));
+    }
+
+    /**
+     * Finds the completed frameworks matching the given name, role and principal
+     * @return framework ids, empty if none matches
+     */
+    public List<String> findCompletedFrameworkIds(String name, String role, String principal) {
+        return ids(completedByTriple.get(key(name, role, principal)));
+    }
+
+    /**
+     * Returns the distinct agents where the tasks of a running framework are located
+     * @param frameworkId framework id
+     * @return agent ids, empty if the framework is unknown or has no tasks
+     */
+    public Set<String> findAgents(String frameworkId) {
+        return agents.getOrDefault(frameworkId, Collections.emptySet());
+    }
+
+    /**
+     * Returns the distinct agents where the completed tasks of a completed framework ran
+     * @param frameworkId framework id
+     * @return agent ids, empty if the framework is unknown or has no completed tasks
+     */
+    public Set<String> findCompletedAgents(String frameworkId) {
+        return completedAgents.getOrDefault(frameworkId, Collections.emptySet());
+    }
+
+    /**
+     * @return every running and completed framework
+     */
+    public Collection<Framework> getFrameworks() {
+        return Collections.unmodifiableList(frameworks);
+    }
+
+    private static Framework toFramework(JsonNode framework, String tasksField, boolean completed) {
+        Set<String> agentIds = new LinkedHashSet<>();
+        for (JsonNode task : framework.path(tasksField)) {
+            String agentId = text(task, "slave_id");
+            if (agentId != null) agentIds.add(agentId);
+        }
+        return new Framework(
+                text(framework, "id"),
+                text(framework, "name"),
+                text(framework, "role"),
+                text(framework, "principal"),
+                framework.path("active").asBoolean(false),
+                completed,
+                agentIds);
+    }
+
+    private static List<String> ids(List<Framework> frameworks) {
+        if (frameworks == null) return Collections.emptyList();
+        List<String> ids = new ArrayList<>(frameworks.size());
+        for (Framework framework : frameworks) {
+            ids.add(framework.getId());
+        }
+        return ids;
+    }
+
+    private static List<Object> key(Object... fields) {
+        return Arrays.asList(fields);
+    }
+
+    static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return (value == null || value.isNull()) ? null : value.asText();
+    }
+}
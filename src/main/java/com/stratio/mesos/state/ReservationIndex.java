@@ -0,0 +1,75 @@
+package com.stratio.mesos.state;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Typed view of the /slaves document indexed by (agent, role) to reserved resources, parsed once when indexed
+ */
+public class ReservationIndex {
+    private final Set<String> agentIds = new LinkedHashSet<>();
+    // (agent id, role) -> reserved resources
+    private final Map<List<String>, List<Resource>> reservations = new HashMap<>();
+
+    /**
+     * Builds the index from a /slaves document, as returned by {@link StateParser#parseSlaves}
+     * @param state slaves document
+     * @return the index
+     */
+    public static ReservationIndex from(JsonNode state) {
+        ReservationIndex index = new ReservationIndex();
+        for (JsonNode slave : state.path("slaves")) {
+            String agentId = FrameworkIndex.text(slave, "id");
+            if (agentId == null) continue;
+            index.agentIds.add(agentId);
+
+            Iterator<Map.Entry<String, JsonNode>> roles = slave.path("reserved_resources_full").fields();
+            while (roles.hasNext()) {
+                Map.Entry<String, JsonNode> role = roles.next();
+                List<Resource> resources = new ArrayList<>(role.getValue().size());
+                for (JsonNode resource : role.getValue()) {
+                    if (resource.isObject()) {
+                        resources.add(Resource.from(resource));
+                    }
+                }
+                index.reservations.put(Arrays.asList(agentId, role.getKey()), resources);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the resources reserved for a role inside an agent
+     * @param agentId mesos agent (slave) id
+     * @param role mesos role
+     * @return reserved resources, empty if there are none
+     */
+    public List<Resource> findReservations(String agentId, String role) {
+        List<Resource> resources = reservations.get(Arrays.asList(agentId, role));
+        return resources != null ? Collections.unmodifiableList(resources) : Collections.emptyList();
+    }
+
+    /**
+     * @param agentId mesos agent (slave) id
+     * @return true if the agent was registered in the master
+     */
+    public boolean hasAgent(String agentId) {
+        return agentIds.contains(agentId);
+    }
+
+    /**
+     * @return every registered agent id
+     */
+    public Set<String> getAgentIds() {
+        return Collections.unmodifiableSet(agentIds);
+    }
+}
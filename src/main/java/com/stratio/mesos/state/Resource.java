@@ -0,0 +1,199 @@
+package com.stratio.mesos.state;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reserved mesos resource, parsed once from the master state.
+ * Mesos only accepts an unreserve or destroy-volumes request with the resource exactly as it reported it,
+ * so the JSON received is kept and written as is into request bodies; the typed fields are read from it
+ */
+public class Resource {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public enum Type {
+        SCALAR, RANGES, SET, UNKNOWN
+    }
+
+    private final JsonNode json;
+    private final String name;
+    private final Type type;
+    private final double scalar;
+    private final List<Range> ranges;
+    private final List<String> set;
+    private final String role;
+    private final String principal;
+    private final String persistenceId;
+
+    private Resource(JsonNode json) {
+        this.json = json;
+        this.name = FrameworkIndex.text(json, "name");
+        this.type = type(FrameworkIndex.text(json, "type"));
+        this.scalar = json.path("scalar").path("value").asDouble();
+
+        List<Range> ranges = new ArrayList<>();
+        for (JsonNode range : json.path("ranges").path("range")) {
+            ranges.add(new Range(range.path("begin").asLong(), range.path("end").asLong()));
+        }
+        this.ranges = Collections.unmodifiableList(ranges);
+
+        List<String> set = new ArrayList<>();
+        for (JsonNode item : json.path("set").path("item")) {
+            set.add(item.asText());
+        }
+        this.set = Collections.unmodifiableList(set);
+
+        // refined reservations (mesos 1.4+) are a stack, the last one is the current reservation
+        JsonNode reservations = json.path("reservations");
+        JsonNode reservation = reservations.size() > 0 ? reservations.get(reservations.size() - 1) : json.path("reservation");
+        this.role = reservation.hasNonNull("role") ? reservation.get("role").asText() : FrameworkIndex.text(json, "role");
+        this.principal = FrameworkIndex.text(reservation, "principal");
+        this.persistenceId = FrameworkIndex.text(json.path("disk").path("persistence"), "id");
+    }
+
+    /**
+     * @param json resource as reported by the master, it must not be modified afterwards
+     * @return typed resource
+     */
+    public static Resource from(JsonNode json) {
+        if (json == null || !json.isObject()) {
+            throw new IllegalArgumentException("A resource must be a JSON object: " + json);
+        }
+        return new Resource(json);
+    }
+
+    /**
+     * @param json resource JSON as reported by the master
+     * @return typed resource
+     * @throws IOException if the JSON is not valid or not an object
+     */
+    public static Resource parse(String json) throws IOException {
+        JsonNode node = MAPPER.readTree(json);
+        if (node == null || !node.isObject()) {
+            throw new IOException("A resource must be a JSON object: " + json);
+        }
+        return new Resource(node);
+    }
+
+    /**
+     * @return the resource JSON exactly as reported by the master, shared and not to be modified
+     */
+    public JsonNode getJson() {
+        return json;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return value of a SCALAR resource, 0 for other types
+     */
+    public double getScalar() {
+        return scalar;
+    }
+
+    /**
+     * @return ranges of a RANGES resource, empty for other types
+     */
+    public List<Range> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * @return items of a SET resource, empty for other types
+     */
+    public List<String> getSet() {
+        return set;
+    }
+
+    /**
+     * @return role of the current reservation, null for unreserved resources
+     */
+    public String getRole() {
+        return role;
+    }
+
+    /**
+     * @return principal that made the current reservation, if any
+     */
+    public String getPrincipal() {
+        return principal;
+    }
+
+    /**
+     * @return id of the persistent volume, null if the resource is not a volume
+     */
+    public String getPersistenceId() {
+        return persistenceId;
+    }
+
+    /**
+     * Persistent volumes must be destroyed before being unreserved
+     * @return true if the resource is a persistent volume
+     */
+    public boolean isVolume() {
+        return persistenceId != null;
+    }
+
+    /**
+     * A destroyed volume is unreserved as a plain disk resource
+     * @return the same resource without its disk info
+     */
+    public Resource withoutDisk() {
+        if (!json.has("disk")) {
+            return this;
+        }
+        ObjectNode plain = ((ObjectNode) json).deepCopy();
+        plain.remove("disk");
+        return new Resource(plain);
+    }
+
+    /**
+     * @return the resource JSON
+     */
+    @Override
+    public String toString() {
+        return json.toString();
+    }
+
+    private static Type type(String type) {
+        if (type == null) return Type.UNKNOWN;
+        try {
+            return Type.valueOf(type);
+        } catch (IllegalArgumentException e) {
+            return Type.UNKNOWN;
+        }
+    }
+
+    /**
+     * Inclusive range of a RANGES resource, such as ports
+     */
+    public static class Range {
+        private final long begin;
+        private final long end;
+
+        public Range(long begin, long end) {
+            this.begin = begin;
+            this.end = end;
+        }
+
+        public long getBegin() {
+            return begin;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+    }
+}
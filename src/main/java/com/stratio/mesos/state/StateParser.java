@@ -0,0 +1,378 @@
+package com.stratio.mesos.state;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Message;
+import org.apache.mesos.v1.master.Protos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming reader for the mesos master /frameworks and /slaves documents.
+ * Responses are consumed token by token and only the fields needed by the lookups are kept, so the
+ * resulting tree has the same shape as the original document but a fraction of its size.
+ * Responses of the v1 operator API, JSON or protobuf, are translated into the same trees
+ */
+public class StateParser {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    private static final Set<String> FRAMEWORK_SECTIONS = new HashSet<>(Arrays.asList("frameworks", "completed_frameworks"));
+    private static final Set<String> FRAMEWORK_FIELDS = new HashSet<>(Arrays.asList("id", "name", "role", "principal", "active"));
+    private static final Set<String> TASK_SECTIONS = new HashSet<>(Arrays.asList("tasks", "completed_tasks"));
+
+    private StateParser() {
+    }
+
+    /**
+     * Reads a /frameworks document keeping id, name, role, principal, active and the slave_id of every task
+     * @param in raw response stream, closed once read
+     * @return {"frameworks":[...], "completed_frameworks":[...]}
+     * @throws IOException if the stream cannot be read or is not valid JSON
+     */
+    public static JsonNode parseFrameworks(InputStream in) throws IOException {
+        ObjectNode state = NODES.objectNode();
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected frameworks document, an object was expected");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (FRAMEWORK_SECTIONS.contains(field) && token == JsonToken.START_ARRAY) {
+                    ArrayNode frameworks = state.putArray(field);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        frameworks.add(readFramework(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Reads a /slaves document keeping only the id and the reserved_resources_full section of every slave
+     * @param in raw response stream, closed once read
+     * @return {"slaves":[{"id":..., "reserved_resources_full":{...}}]}
+     * @throws IOException if the stream cannot be read or is not valid JSON
+     */
+    public static JsonNode parseSlaves(InputStream in) throws IOException {
+        ObjectNode state = NODES.objectNode();
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected slaves document, an object was expected");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("slaves".equals(field) && token == JsonToken.START_ARRAY) {
+                    ArrayNode slaves = state.putArray(field);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        slaves.add(readSlave(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Reads the GET_FRAMEWORKS and GET_TASKS responses of the v1 operator API
+     * @param frameworksIn GET_FRAMEWORKS response stream, closed once read
+     * @param tasksIn GET_TASKS response stream, closed once read
+     * @return the same tree {@link #parseFrameworks(InputStream)} returns for a /frameworks document
+     * @throws IOException if the streams cannot be read or are not valid JSON
+     */
+    public static JsonNode parseOperatorFrameworks(InputStream frameworksIn, InputStream tasksIn) throws IOException {
+        return operatorFrameworks(
+                consumer -> forEachElement(frameworksIn, "get_frameworks", consumer),
+                consumer -> forEachElement(tasksIn, "get_tasks", consumer));
+    }
+
+    /**
+     * Reads the protobuf encoded GET_FRAMEWORKS and GET_TASKS responses of the v1 operator API
+     * @param frameworksIn GET_FRAMEWORKS response stream, closed once read
+     * @param tasksIn GET_TASKS response stream, closed once read
+     * @return the same tree {@link #parseFrameworks(InputStream)} returns for a /frameworks document
+     * @throws IOException if the streams cannot be read or are not valid mesos.v1.master.Response messages
+     */
+    public static JsonNode parseOperatorFrameworksProtobuf(InputStream frameworksIn, InputStream tasksIn) throws IOException {
+        Message frameworks = readResponse(frameworksIn);
+        Message tasks = readResponse(tasksIn);
+        return operatorFrameworks(
+                consumer -> forEachElement(frameworks, "get_frameworks", consumer),
+                consumer -> forEachElement(tasks, "get_tasks", consumer));
+    }
+
+    private static JsonNode operatorFrameworks(ElementSource frameworksSource, ElementSource tasksSource) throws IOException {
+        ObjectNode state = NODES.objectNode();
+        Map<String, ObjectNode> byId = new HashMap<>();
+        frameworksSource.forEach((section, element) -> {
+            if (!FRAMEWORK_SECTIONS.contains(section)) return;
+            JsonNode info = element.path("framework_info");
+            ObjectNode framework = state.withArray(section).addObject();
+            framework.put("id", info.path("id").path("value").asText());
+            framework.set("name", info.get("name"));
+            framework.set("role", info.has("role") ? info.get("role") : info.path("roles").get(0));
+            framework.set("principal", info.get("principal"));
+            framework.put("active", element.path("active").asBoolean(false));
+            framework.putArray("tasks");
+            framework.putArray("completed_tasks");
+            byId.putIfAbsent(framework.get("id").asText(), framework);
+        });
+        tasksSource.forEach((section, element) -> {
+            String tasks = "completed_tasks".equals(section) ? "completed_tasks" : "tasks".equals(section) ? "tasks" : null;
+            ObjectNode framework = byId.get(element.path("framework_id").path("value").asText());
+            if (tasks != null && framework != null && element.has("agent_id")) {
+                framework.withArray(tasks).addObject().put("slave_id", element.path("agent_id").path("value").asText());
+            }
+        });
+        return state;
+    }
+
+    /**
+     * Reads the GET_AGENTS response of the v1 operator API keeping the reserved resources of every agent
+     * @param in GET_AGENTS response stream, closed once read
+     * @return the same tree {@link #parseSlaves(InputStream)} returns for a /slaves document
+     * @throws IOException if the stream cannot be read or is not valid JSON
+     */
+    public static JsonNode parseOperatorAgents(InputStream in) throws IOException {
+        return operatorAgents(consumer -> forEachElement(in, "get_agents", consumer));
+    }
+
+    /**
+     * Reads the protobuf encoded GET_AGENTS response of the v1 operator API
+     * @param in GET_AGENTS response stream, closed once read
+     * @return the same tree {@link #parseSlaves(InputStream)} returns for a /slaves document
+     * @throws IOException if the stream cannot be read or is not a valid mesos.v1.master.Response message
+     */
+    public static JsonNode parseOperatorAgentsProtobuf(InputStream in) throws IOException {
+        Message agents = readResponse(in);
+        return operatorAgents(consumer -> forEachElement(agents, "get_agents", consumer));
+    }
+
+    private static JsonNode operatorAgents(ElementSource source) throws IOException {
+        ObjectNode state = NODES.objectNode();
+        ArrayNode slaves = state.putArray("slaves");
+        source.forEach((section, element) -> {
+            if (!"agents".equals(section)) return;
+            ObjectNode slave = slaves.addObject();
+            slave.put("id", element.path("agent_info").path("id").path("value").asText());
+            ObjectNode reserved = slave.putObject("reserved_resources_full");
+            for (JsonNode resource : element.path("total_resources")) {
+                String role = reservationRole(resource);
+                if (role != null) {
+                    reserved.withArray(role).add(resource);
+                }
+            }
+        });
+        return state;
+    }
+
+    // role a resource is reserved for, null for unreserved resources
+    private static String reservationRole(JsonNode resource) {
+        JsonNode reservations = resource.path("reservations");
+        if (reservations.size() > 0) {
+            return reservations.get(reservations.size() - 1).path("role").asText(null);
+        }
+        String role = resource.path("role").asText("*");
+        return "*".equals(role) ? null : role;
+    }
+
+    // streams a v1 response, handing every element of the arrays inside the response field to the consumer
+    private static void forEachElement(InputStream in, String response, ElementConsumer consumer) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected operator response, an object was expected");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (!response.equals(field) || token != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String section = parser.getCurrentName();
+                    if (parser.nextToken() != JsonToken.START_ARRAY) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        consumer.accept(section, readValue(parser));
+                    }
+                }
+            }
+        }
+    }
+
+    // protobuf messages cannot be streamed, the response is decoded whole but is far smaller than its JSON
+    private static Message readResponse(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            return Protos.Response.parseFrom(stream);
+        }
+    }
+
+    // hands every element of the repeated fields inside the response field to the consumer, one at a time
+    private static void forEachElement(Message message, String response, ElementConsumer consumer) {
+        Descriptors.FieldDescriptor responseField = message.getDescriptorForType().findFieldByName(response);
+        if (responseField == null || !message.hasField(responseField)) {
+            return;
+        }
+
+        Message sections = (Message) message.getField(responseField);
+        for (Map.Entry<Descriptors.FieldDescriptor, Object> section : sections.getAllFields().entrySet()) {
+            if (section.getKey().isRepeated() && section.getKey().getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+                for (Object element : (List<?>) section.getValue()) {
+                    consumer.accept(section.getKey().getName(), toJson((Message) element));
+                }
+            }
+        }
+    }
+
+    // the JSON mesos renders for a message: proto field names, enum names, only the fields that are set
+    private static ObjectNode toJson(Message message) {
+        ObjectNode json = NODES.objectNode();
+        for (Map.Entry<Descriptors.FieldDescriptor, Object> field : message.getAllFields().entrySet()) {
+            if (field.getKey().isRepeated()) {
+                ArrayNode values = json.putArray(field.getKey().getName());
+                for (Object value : (List<?>) field.getValue()) {
+                    values.add(toJson(field.getKey(), value));
+                }
+            } else {
+                json.set(field.getKey().getName(), toJson(field.getKey(), field.getValue()));
+            }
+        }
+        return json;
+    }
+
+    private static JsonNode toJson(Descriptors.FieldDescriptor field, Object value) {
+        switch (field.getType()) {
+            case MESSAGE:
+            case GROUP:
+                return toJson((Message) value);
+            case ENUM:
+                return NODES.textNode(((Descriptors.EnumValueDescriptor) value).getName());
+            case BYTES:
+                return NODES.textNode(Base64.getEncoder().encodeToString(((ByteString) value).toByteArray()));
+            case UINT32:
+            case FIXED32:
+                return NODES.numberNode(Integer.toUnsignedLong((Integer) value));
+            case UINT64:
+            case FIXED64:
+                long unsigned = (Long) value;
+                return unsigned >= 0 ? NODES.numberNode(unsigned) : NODES.numberNode(new BigInteger(Long.toUnsignedString(unsigned)));
+            case INT64:
+            case SINT64:
+            case SFIXED64:
+                return NODES.numberNode((Long) value);
+            case INT32:
+            case SINT32:
+            case SFIXED32:
+                return NODES.numberNode((Integer) value);
+            case DOUBLE:
+                return NODES.numberNode((Double) value);
+            case FLOAT:
+                return NODES.numberNode((Float) value);
+            case BOOL:
+                return NODES.booleanNode((Boolean) value);
+            default:
+                return NODES.textNode(String.valueOf(value));
+        }
+    }
+
+    @FunctionalInterface
+    private interface ElementConsumer {
+        void accept(String section, JsonNode element);
+    }
+
+    // elements of an operator response, read from JSON or protobuf
+    @FunctionalInterface
+    private interface ElementSource {
+        void forEach(ElementConsumer consumer) throws IOException;
+    }
+
+    // parser is positioned on the START_OBJECT of a framework
+    private static ObjectNode readFramework(JsonParser parser) throws IOException {
+        ObjectNode framework = NODES.objectNode();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (FRAMEWORK_FIELDS.contains(field) && token.isScalarValue()) {
+                framework.set(field, readValue(parser));
+            } else if (TASK_SECTIONS.contains(field) && token == JsonToken.START_ARRAY) {
+                framework.set(field, readTasks(parser));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return framework;
+    }
+
+    // parser is positioned on the START_ARRAY of a task list
+    private static ArrayNode readTasks(JsonParser parser) throws IOException {
+        ArrayNode tasks = NODES.arrayNode();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            ObjectNode task = tasks.addObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("slave_id".equals(field) && token.isScalarValue()) {
+                    task.set(field, readValue(parser));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return tasks;
+    }
+
+    // parser is positioned on the START_OBJECT of a slave
+    private static ObjectNode readSlave(JsonParser parser) throws IOException {
+        ObjectNode slave = NODES.objectNode();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("id".equals(field) && token.isScalarValue()) {
+                slave.set(field, readValue(parser));
+            } else if ("reserved_resources_full".equals(field) && token == JsonToken.START_OBJECT) {
+                slave.set(field, readValue(parser));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return slave;
+    }
+
+    // materializes the value the parser is positioned on
+    private static JsonNode readValue(JsonParser parser) throws IOException {
+        JsonNode value = MAPPER.readTree(parser);
+        return value != null ? value : NODES.nullNode();
+    }
+}
@@ -1,6 +1,26 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stratio.mesos.CLI;
 import com.stratio.mesos.api.ApiBuilder;
+import com.stratio.mesos.api.ExhibitorApi;
+import com.stratio.mesos.api.MarathonApi;
 import com.stratio.mesos.api.MesosApi;
+import com.stratio.mesos.auth.TokenCache;
+import com.stratio.mesos.batch.BatchRunner;
+import com.stratio.mesos.batch.Manifest;
+import com.stratio.mesos.http.HTTPUtils;
+import com.stratio.mesos.http.LimitInterceptor;
 import com.stratio.mesos.http.MesosInterface;
+import com.stratio.mesos.http.TransferStats;
+import com.stratio.mesos.metrics.Metrics;
+import com.stratio.mesos.plan.Plan;
+import com.stratio.mesos.plan.UninstallPlan;
+import com.stratio.mesos.server.JanithorServer;
+import com.stratio.mesos.state.Resource;
+import com.stratio.mesos.state.StateParser;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
 import okhttp3.*;
 import okio.BufferedSource;
 import okio.Okio;
@@ -9,20 +29,39 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
 import retrofit2.Call;
+import retrofit2.Response;
 import retrofit2.Retrofit;
 import retrofit2.mock.Calls;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -59,6 +98,8 @@ public class APITest {
 
     private void mockMesosInterface() throws FileNotFoundException {
         mesosApi.setMesosInterface(mesosInterface);
+        // the mocked master serves whole documents, filters are covered by testServerFilters
+        mesosApi.setServerFilters(false);
 
         File fileFrameworks = new File(this.getClass().getClassLoader().getResource("frameworks_kafka_sec.json").getFile());
         // String jsonFrameworks = new java.util.Scanner(fileFrameworks,"UTF8").useDelimiter("\\Z").next();
@@ -113,7 +154,8 @@ public class APITest {
         String[] slavesForFramework = mesosApi.findSlavesForFramework(INACTIVE_FRAMEWORK_ID)
                 .orElse(null);
         Assert.assertNotNull(slavesForFramework);
-        Assert.assertEquals(slavesForFramework.length, 3);
+        // three completed tasks on two distinct slaves
+        Assert.assertEquals(slavesForFramework.length, 2);
     }
 
     @Test
@@ -174,6 +216,1187 @@ public class APITest {
         Assert.assertFalse(teardown);
     }
 
+    @Test
+    public void testSnapshotFetchedOnce() {
+        mesosApi.findFrameworkId(SERVICE, ROLE, PRINCIPAL);
+        String[] slaves = mesosApi.findSlavesForFramework(FRAMEWORK_ID).orElse(null);
+        Assert.assertNotNull(slaves);
+        for (String slave : slaves) {
+            mesosApi.findResourcesFor(ROLE, slave);
+        }
+        mesosApi.findResourcesFor(ROLE, SLAVE_ID);
+
+        // every lookup is answered from the same in-memory state
+        verify(mesosInterface, times(1)).findFrameworks();
+        verify(mesosInterface, times(1)).findResources();
+    }
+
+    @Test
+    public void testSnapshotRefresh() {
+        mesosApi.findResourcesFor(ROLE, SLAVE_ID);
+        mesosApi.refreshSnapshot();
+        String[] resources = mesosApi.findResourcesFor(ROLE, SLAVE_ID);
+        Assert.assertEquals(resources.length, 7);
+        verify(mesosInterface, times(2)).findResources();
+    }
+
+    @Test
+    public void testSnapshotMaxAge() throws InterruptedException {
+        mesosApi.getSnapshot().setMaxAge(1, TimeUnit.MILLISECONDS);
+        mesosApi.findResourcesFor(ROLE, SLAVE_ID);
+        Thread.sleep(5);
+        Assert.assertEquals(mesosApi.findResourcesFor(ROLE, SLAVE_ID).length, 7);
+        verify(mesosInterface, times(2)).findResources();
+    }
+
+    @Test
+    public void testServerFilters() throws IOException {
+        JsonNode frameworks = new ObjectMapper().readTree(getClass().getClassLoader().getResource("frameworks_kafka_sec.json"));
+        JsonNode slaves = new ObjectMapper().readTree(getClass().getClassLoader().getResource("slaves_kafka_sec.json"));
+        when(this.mesosInterface.findFramework(any())).thenAnswer(invocation ->
+                Calls.response(filtered(frameworks, "frameworks", invocation.getArgument(0))));
+        when(this.mesosInterface.findResourcesForSlave(any())).thenAnswer(invocation ->
+                Calls.response(filtered(slaves, "slaves", invocation.getArgument(0))));
+        mesosApi.setServerFilters(true);
+
+        Assert.assertArrayEquals(mesosApi.findSlavesForFramework(FRAMEWORK_ID).orElse(null), new String[]{SLAVE_ID});
+        Assert.assertEquals(mesosApi.findResourcesFor(ROLE, SLAVE_ID).length, 7);
+        Assert.assertEquals(mesosApi.findResourcesForAsync(ROLE, SLAVE_ID).join().length, 7);
+        // only the requested framework and slave travel from the master
+        verify(mesosInterface, times(0)).findFrameworks();
+        verify(mesosInterface, times(0)).findResources();
+        // the filtered slave is cached for the rest of the run
+        verify(mesosInterface, times(1)).findResourcesForSlave(SLAVE_ID);
+        verify(mesosInterface, times(1)).findFramework(FRAMEWORK_ID);
+
+        mesosApi.refreshSnapshot();
+        Assert.assertEquals(mesosApi.findResourcesFor(ROLE, SLAVE_ID).length, 7);
+        verify(mesosInterface, times(2)).findResourcesForSlave(SLAVE_ID);
+    }
+
+    @Test
+    public void testServerFiltersIgnored() {
+        Call<ResponseBody> wholeDocument = this.mesosInterface.findResources();
+        when(this.mesosInterface.findResourcesForSlave(any())).thenReturn(wholeDocument);
+        mesosApi.setServerFilters(true);
+
+        Assert.assertEquals(mesosApi.findResourcesFor(ROLE, SLAVE_ID).length, 7);
+        Assert.assertEquals(mesosApi.findResourcesFor(ROLE, "80f0fb53-95a0-409b-a78d-ca0e002cc289-S6").length, 0);
+        // the unfiltered answer is kept as the snapshot and filters are not requested again
+        verify(mesosInterface, times(1)).findResourcesForSlave(any());
+    }
+
+    // what a master applying ?framework_id= or ?slave_id= answers
+    private ResponseBody filtered(JsonNode document, String section, String id) {
+        com.fasterxml.jackson.databind.node.ObjectNode result = new ObjectMapper().createObjectNode();
+        com.fasterxml.jackson.databind.node.ArrayNode elements = result.putArray(section);
+        document.get(section).forEach(element -> {
+            if (element.get("id").asText().equals(id)) elements.add(element);
+        });
+        return ResponseBody.create(MediaType.parse("application/json"), result.toString());
+    }
+
+    @Test
+    public void testFindResourcesForOtherSlave() {
+        // resources are looked up only inside the requested slave
+        String[] resources = mesosApi.findResourcesFor(ROLE, "80f0fb53-95a0-409b-a78d-ca0e002cc289-S6");
+        Assert.assertNotNull(resources);
+        Assert.assertEquals(resources.length, 0);
+    }
+
+    @Test
+    public void testFindFrameworkIdWithQuotes() {
+        // names are matched as plain values, quotes must not break the lookup
+        String[] frameworkId = mesosApi.findFrameworkId("kafka\"sec", ROLE, PRINCIPAL).orElse(null);
+        Assert.assertNull(frameworkId);
+        frameworkId = mesosApi.findFrameworkId(SERVICE, ROLE, PRINCIPAL).orElse(null);
+        Assert.assertNotNull(frameworkId);
+    }
+
+    @Test
+    public void testStreamingStateParser() throws IOException {
+        JsonNode frameworks;
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("frameworks_kafka_sec.json")) {
+            frameworks = StateParser.parseFrameworks(in);
+        }
+        JsonNode framework = frameworks.get("frameworks").get(0);
+        Assert.assertTrue(framework.has("id") && framework.has("name") && framework.has("role")
+                && framework.has("principal") && framework.has("active"));
+        Assert.assertFalse(framework.has("executors") || framework.has("offers"));
+        Assert.assertEquals(framework.get("tasks").get(0).size(), 1);
+        Assert.assertTrue(framework.get("tasks").get(0).has("slave_id"));
+        Assert.assertTrue(frameworks.get("completed_frameworks").size() > 0);
+        Assert.assertFalse(frameworks.has("unregistered_frameworks"));
+
+        JsonNode slaves;
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("slaves_kafka_sec.json")) {
+            slaves = StateParser.parseSlaves(in);
+        }
+        JsonNode slave = slaves.get("slaves").get(0);
+        Assert.assertEquals(slave.size(), 2);
+        Assert.assertTrue(slave.get("reserved_resources_full").size() > 0);
+    }
+
+    @Test
+    public void testParallelUnreserve() {
+        CLI.unreserve(mesosApi, FRAMEWORK_ID, ROLE, 4);
+        // six standard resources in a single batch and one persistent volume on the framework slave
+        verify(mesosInterface, times(1)).unreserve(any(), any());
+        verify(mesosInterface, times(1)).destroyVolumes(any(), any());
+    }
+
+    @Test(timeout = 10000)
+    public void testStreamingUnreserve() throws IOException {
+        MesosApi mesos = mock(MesosApi.class);
+        CompletableFuture<Optional<String[]>> second = new CompletableFuture<>();
+        when(mesos.findSlavesForFrameworkAsync("f1")).thenReturn(CompletableFuture.completedFuture(Optional.of(new String[]{"s1", "s2"})));
+        when(mesos.findSlavesForFrameworkAsync("f2")).thenReturn(second);
+        when(mesos.findReservationsFor(any(), any())).thenReturn(Arrays.asList(Resource.parse("{\"name\":\"cpus\"}")));
+        when(mesos.unreserve(any(), any())).thenAnswer(invocation -> {
+            // the second framework is only discovered once the first slave has been released
+            second.complete(Optional.of(new String[]{"s2", "s3"}));
+            return new int[]{202};
+        });
+        when(mesos.findFrameworkId(SERVICE, ROLE, PRINCIPAL, true)).thenReturn(Optional.of(new String[]{"f1", "f2"}));
+
+        Assert.assertTrue(CLI.unreserve(mesos, PRINCIPAL, ROLE, SERVICE, true, 2));
+        // slaves shared by both frameworks are unreserved once
+        verify(mesos, times(1)).unreserve(eq("s2"), any());
+        verify(mesos, times(3)).unreserve(any(), any());
+    }
+
+    @Test
+    public void testBatchUnreserve() {
+        List<String> resources = Arrays.asList(mesosApi.findResourcesFor(ROLE, SLAVE_ID));
+        int[] codes = mesosApi.unreserveResourcesFor(SLAVE_ID, resources);
+        Assert.assertEquals(codes.length, 7);
+        for (int code : codes) {
+            Assert.assertEquals(code, 200);
+        }
+        verify(mesosInterface, times(1)).unreserve(any(), any());
+    }
+
+    @Test
+    public void testResourceModel() throws IOException {
+        List<Resource> resources = mesosApi.findReservationsFor(ROLE, SLAVE_ID);
+        Assert.assertEquals(resources.size(), 7);
+        Assert.assertEquals(resources.get(0).getType(), Resource.Type.SCALAR);
+        Assert.assertEquals(resources.get(0).getScalar(), 1, 0);
+        Assert.assertEquals(resources.get(0).getRole(), ROLE);
+        Assert.assertEquals(resources.get(0).getPrincipal(), PRINCIPAL);
+        Assert.assertEquals(resources.get(3).getRanges().get(0).getBegin(), 9092);
+
+        Resource volume = resources.get(2);
+        Assert.assertTrue(volume.isVolume());
+        Assert.assertEquals(volume.getPersistenceId(), "ae7c5531-1971-4726-aa35-c57de79f084e");
+        Assert.assertFalse(volume.withoutDisk().isVolume());
+        Assert.assertTrue(volume.isVolume());
+        // the JSON is kept as the master sent it, the string API returns the same resources
+        Assert.assertEquals(resources.get(0).toString(), mesosApi.findResourcesFor(ROLE, SLAVE_ID)[0]);
+
+        // refined reservations, the last one is the current one
+        Resource refined = Resource.parse("{\"name\":\"cpus\",\"type\":\"SCALAR\",\"scalar\":{\"value\":2}," +
+                "\"reservations\":[{\"role\":\"a\",\"principal\":\"p\"},{\"role\":\"a/b\",\"principal\":\"q\"}]}");
+        Assert.assertEquals(refined.getRole(), "a/b");
+        Assert.assertEquals(refined.getPrincipal(), "q");
+        Assert.assertFalse(refined.isVolume());
+    }
+
+    @Test
+    public void testBatchVolumes() {
+        ResponseBody accepted = ResponseBody.create(MediaType.parse("application/json"), "");
+        when(this.mesosInterface.destroyVolumes(any(), any())).thenReturn(Calls.response(Response.success(accepted, rawResponse(202))));
+        when(this.mesosInterface.unreserve(any(), any())).thenReturn(Calls.response(Response.success(accepted, rawResponse(202))));
+
+        String volume = "{\"name\":\"disk\",\"disk\":{\"persistence\":{\"id\":\"%s\"}}}";
+        List<String> volumes = Arrays.asList(String.format(volume, "a"), String.format(volume, "b"), String.format(volume, "c"));
+        int[] codes = mesosApi.destroyAndUnreserveVolumesFor(SLAVE_ID, volumes);
+        Assert.assertArrayEquals(codes, new int[]{202, 202, 202});
+        // one destroy-volumes and one unreserve for the whole slave
+        verify(mesosInterface, times(1)).destroyVolumes(any(), any());
+        verify(mesosInterface, times(1)).unreserve(any(), any());
+    }
+
+    @Test
+    public void testBatchUnreserveConflict() {
+        ResponseBody conflict = ResponseBody.create(MediaType.parse("application/json"), "");
+        when(this.mesosInterface.unreserve(any(), any())).thenReturn(Calls.response(Response.error(409, conflict)));
+
+        List<String> resources = Arrays.asList("{\"name\":\"cpus\"}", "{\"name\":\"mem\"}", "{\"name\":\"ports\"}");
+        int[] codes = mesosApi.unreserveResourcesFor(SLAVE_ID, resources);
+        Assert.assertArrayEquals(codes, new int[]{409, 409, 409});
+        // [3] -> [1] + [2] -> [1] + [1]
+        verify(mesosInterface, times(5)).unreserve(any(), any());
+    }
+
+    @Test
+    public void testAsyncLookups() {
+        CompletableFuture<Optional<String[]>> frameworkId = mesosApi.findFrameworkIdAsync(SERVICE, ROLE, PRINCIPAL);
+        CompletableFuture<Optional<String[]>> slaves = mesosApi.findSlavesForFrameworkAsync(FRAMEWORK_ID);
+        CompletableFuture<String[]> resources = mesosApi.findResourcesForAsync(ROLE, SLAVE_ID);
+
+        Assert.assertEquals(frameworkId.join().orElse(null)[0], FRAMEWORK_ID);
+        Assert.assertEquals(slaves.join().orElse(null)[0], SLAVE_ID);
+        Assert.assertEquals(resources.join().length, 7);
+        // async and blocking lookups share the same snapshot
+        Assert.assertEquals(mesosApi.findResourcesFor(ROLE, SLAVE_ID).length, 7);
+        verify(mesosInterface, times(1)).findFrameworks();
+        verify(mesosInterface, times(1)).findResources();
+    }
+
+    @Test
+    public void testAsyncOperations() {
+        Assert.assertEquals(mesosApi.unreserveResourceForAsync(SLAVE_ID, "{}").join().intValue(), 200);
+        Assert.assertEquals(mesosApi.unreserveVolumesForAsync(SLAVE_ID, "{}").join().intValue(), 200);
+        Assert.assertEquals(mesosApi.unreserveResourceForAsync(SLAVE_ID, null).join().intValue(), -1);
+        Assert.assertTrue(mesosApi.teardownAsync(FRAMEWORK_ID).join());
+        Assert.assertFalse(mesosApi.teardownAsync(null).join());
+    }
+
+    @Test
+    public void testAsyncFailure() {
+        when(this.mesosInterface.findResources()).thenReturn(Calls.failure(new IOException("unreachable")));
+        when(this.mesosInterface.teardown(any())).thenReturn(Calls.failure(new IOException("unreachable")));
+
+        // failures complete the futures with the same defaults as the blocking calls
+        Assert.assertNull(mesosApi.findResourcesForAsync(ROLE, SLAVE_ID).join());
+        Assert.assertFalse(mesosApi.teardownAsync(FRAMEWORK_ID).join());
+    }
+
+    @Test
+    public void testBatchManifestFormats() throws IOException {
+        String service = "{\"framework\":\"%s\",\"role\":\"r\",\"operations\":[\"teardown\",\"unreserve\"]}";
+        String array = "[" + String.format(service, "a") + "," + String.format(service, "b") + "]";
+        String document = "{\"services\":" + array + "}";
+        String ndjson = String.format(service, "a") + "\n" + String.format(service, "b") + "\n";
+
+        for (String manifest : Arrays.asList(array, document, ndjson)) {
+            List<Manifest.Service> services = Manifest.read(new ByteArrayInputStream(manifest.getBytes("UTF-8"))).getServices();
+            Assert.assertEquals(services.size(), 2);
+            Assert.assertEquals(services.get(1).getFramework(), "b");
+            Assert.assertEquals(services.get(1).getZnode(), "b");
+            Assert.assertTrue(services.get(1).isActive());
+            Assert.assertEquals(services.get(1).getOperations(), Arrays.asList("teardown", "unreserve"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testBatchManifestWithoutOperations() throws IOException {
+        Manifest.read(new ByteArrayInputStream("{\"framework\":\"a\"}".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testBatchRun() {
+        Manifest manifest = new Manifest(Arrays.asList(
+                new Manifest.Service(SERVICE, PRINCIPAL, ROLE, true, SERVICE, Arrays.asList("lookup", "teardown", "unreserve")),
+                new Manifest.Service(INACTIVE_SERVICE, INACTIVE_PRINCIPAL, INACTIVE_ROLE, false, INACTIVE_SERVICE, Arrays.asList("lookup", "purge"))));
+
+        BatchRunner.Report report = CLI.batch(new BatchRunner(() -> mesosApi, () -> null, () -> null, 2), manifest);
+        Assert.assertEquals(report.getSucceeded(), 4);
+        Assert.assertEquals(report.getFailed(), 1);
+        // the master state is downloaded once for the whole manifest
+        verify(mesosInterface, times(1)).findFrameworks();
+        verify(mesosInterface, times(1)).findResources();
+    }
+
+    @Test
+    public void testUninstallPlan() {
+        MarathonApi marathon = mock(MarathonApi.class);
+        ExhibitorApi exhibitor = mock(ExhibitorApi.class);
+        ExhibitorApi.DeleteReport deleted = mock(ExhibitorApi.DeleteReport.class);
+        when(deleted.isSucceeded()).thenReturn(true);
+        when(marathon.destroyApp(SERVICE)).thenReturn(MarathonApi.Destroyed.DESTROYED);
+        when(exhibitor.deleteRecursively(eq(SERVICE), Mockito.anyInt())).thenReturn(deleted);
+
+        Plan plan = UninstallPlan.build(mesosApi, marathon, exhibitor, PRINCIPAL, ROLE, SERVICE, SERVICE, true);
+        List<Plan.Step> steps = plan.getSteps();
+        Assert.assertEquals(steps.size(), 4);
+        Assert.assertEquals(steps.get(1).getDescription(), "teardown framework " + FRAMEWORK_ID);
+        Assert.assertEquals(steps.get(1).getDependencies(), Arrays.asList(steps.get(0)));
+        Assert.assertEquals(steps.get(2).getDependencies(), Arrays.asList(steps.get(1)));
+        Assert.assertEquals(steps.get(3).getDependencies(), Arrays.asList(steps.get(0)));
+        // a dry run only looks up frameworks and slaves
+        Assert.assertTrue(CLI.uninstall(mesosApi, marathon, exhibitor, PRINCIPAL, ROLE, SERVICE, SERVICE, true, 4, true));
+        verify(marathon, never()).destroyApp(any());
+        verify(mesosInterface, never()).teardown(any());
+
+        Plan.Report report = plan.run(4, System.out::println);
+        Assert.assertTrue(report.isSuccessful());
+        verify(mesosInterface, times(1)).teardown(any());
+        verify(mesosInterface, times(1)).unreserve(any(), any());
+        verify(mesosInterface, times(1)).destroyVolumes(any(), any());
+        verify(exhibitor, times(1)).deleteRecursively(eq(SERVICE), Mockito.anyInt());
+    }
+
+    @Test
+    public void testUninstallPlanFailure() {
+        MarathonApi marathon = mock(MarathonApi.class);
+        ExhibitorApi exhibitor = mock(ExhibitorApi.class);
+        when(marathon.destroyApp(SERVICE)).thenReturn(MarathonApi.Destroyed.FAILED);
+
+        // the scheduler is still running, nothing else is touched
+        Plan.Report report = UninstallPlan.build(mesosApi, marathon, exhibitor, PRINCIPAL, ROLE, SERVICE, SERVICE, true).run(4, System.out::println);
+        Assert.assertEquals(report.getStatuses(), Arrays.asList(Plan.Status.FAILED, Plan.Status.SKIPPED, Plan.Status.SKIPPED, Plan.Status.SKIPPED));
+        verify(mesosInterface, never()).teardown(any());
+        verify(mesosInterface, never()).unreserve(any(), any());
+        verify(exhibitor, never()).deleteRecursively(any(), Mockito.anyInt());
+    }
+
+    @Test
+    public void testUninstallPlanAbsentApp() throws IOException {
+        MockWebServer marathonServer = new MockWebServer();
+        marathonServer.enqueue(new com.squareup.okhttp.mockwebserver.MockResponse().setResponseCode(404));
+        marathonServer.start();
+        ExhibitorApi exhibitor = mock(ExhibitorApi.class);
+        ExhibitorApi.DeleteReport deleted = mock(ExhibitorApi.DeleteReport.class);
+        when(deleted.isSucceeded()).thenReturn(true);
+        when(exhibitor.deleteRecursively(eq(SERVICE), Mockito.anyInt())).thenReturn(deleted);
+
+        try {
+            // a previous run already destroyed the app, the rest of the cleanup still runs
+            MarathonApi marathon = ApiBuilder.build(marathonServer.url("/").toString(), MarathonApi.class);
+            Plan.Report report = UninstallPlan.build(mesosApi, marathon, exhibitor, PRINCIPAL, ROLE, SERVICE, SERVICE, true).run(4, System.out::println);
+            Assert.assertTrue(report.isSuccessful());
+            verify(mesosInterface, times(1)).teardown(any());
+            verify(mesosInterface, times(1)).unreserve(any(), any());
+            verify(exhibitor, times(1)).deleteRecursively(eq(SERVICE), Mockito.anyInt());
+        } finally {
+            marathonServer.shutdown();
+        }
+    }
+
+    @Test
+    public void testServerAgainstStandInMaster() throws IOException, InterruptedException {
+        MockWebServer master = new MockWebServer();
+        master.setDispatcher(new Dispatcher() {
+            @Override
+            public com.squareup.okhttp.mockwebserver.MockResponse dispatch(RecordedRequest request) {
+                com.squareup.okhttp.mockwebserver.MockResponse response = new com.squareup.okhttp.mockwebserver.MockResponse();
+                if (request.getPath().startsWith("/frameworks")) return response.setBody(resource("frameworks_kafka_sec.json"));
+                if (request.getPath().startsWith("/slaves")) return response.setBody(resource("slaves_kafka_sec.json"));
+                return response.setResponseCode(200);
+            }
+        });
+        master.start();
+
+        MesosApi mesos = ApiBuilder.build(master.url("/").toString(), MesosApi.class);
+        mesos.setEndpointsPrefix(MesosApi.EndpointPrefix.EMPTY);
+        JanithorServer server = new JanithorServer(mesos, null, null, "secret");
+        server.start(0);
+        try {
+            String query = "?framework=" + SERVICE + "&role=" + ROLE + "&principal=" + PRINCIPAL;
+            String lookup = request(server, "GET", "/lookup" + query, 200);
+            Assert.assertTrue(lookup.contains(FRAMEWORK_ID));
+            String resources = request(server, "GET", "/resources" + query, 200);
+            Assert.assertTrue(resources.contains(SLAVE_ID));
+            // lookups are answered from the warm snapshot
+            Assert.assertEquals(master.getRequestCount(), 2);
+
+            request(server, "GET", "/teardown" + query, 405);
+            request(server, "GET", "/lookup", 400);
+            // mutations require the shared token
+            request(server, "POST", "/teardown" + query, 401);
+            request(server, "POST", "/teardown" + query, "wrong", 401);
+            String teardown = request(server, "POST", "/teardown" + query, "secret", 200);
+            Assert.assertTrue(teardown.contains("\"success\":true"));
+        } finally {
+            server.stop();
+            master.shutdown();
+        }
+    }
+
+    @Test
+    public void testGzipTransfer() throws IOException, InterruptedException {
+        java.io.ByteArrayOutputStream compressed = new java.io.ByteArrayOutputStream();
+        try (java.util.zip.GZIPOutputStream gzip = new java.util.zip.GZIPOutputStream(compressed)) {
+            gzip.write(resource("slaves_kafka_sec.json").getBytes("UTF-8"));
+        }
+        MockWebServer master = new MockWebServer();
+        master.enqueue(new com.squareup.okhttp.mockwebserver.MockResponse()
+                .addHeader("Content-Encoding", "gzip")
+                .setBody(new okio.Buffer().write(compressed.toByteArray())));
+        master.start();
+
+        TransferStats.reset();
+        try {
+            MesosApi mesos = ApiBuilder.build(master.url("/").toString(), MesosApi.class);
+            mesos.setEndpointsPrefix(MesosApi.EndpointPrefix.EMPTY);
+            mesos.setServerFilters(false);
+            Assert.assertEquals(mesos.findResourcesFor(ROLE, SLAVE_ID).length, 7);
+            Assert.assertEquals(master.takeRequest().getHeader("Accept-Encoding"), "gzip");
+
+            TransferStats.Endpoint slaves = TransferStats.getEndpoints().get(0);
+            Assert.assertEquals(slaves.getName(), "/slaves");
+            Assert.assertEquals(slaves.getCompressedBytes(), compressed.size());
+            Assert.assertEquals(slaves.getUncompressedBytes(), resource("slaves_kafka_sec.json").getBytes("UTF-8").length);
+            Assert.assertEquals(TransferStats.report().size(), 1);
+        } finally {
+            master.shutdown();
+        }
+    }
+
+    @Test
+    public void testRecursiveExhibitorDelete() throws IOException {
+        // /svc -> a -> a1, a2 and /svc -> "b c"
+        List<String> deletes = new java.util.concurrent.CopyOnWriteArrayList<>();
+        java.util.concurrent.atomic.AtomicBoolean failing = new java.util.concurrent.atomic.AtomicBoolean();
+        MockWebServer exhibitor = new MockWebServer();
+        exhibitor.setDispatcher(new Dispatcher() {
+            @Override
+            public com.squareup.okhttp.mockwebserver.MockResponse dispatch(RecordedRequest request) {
+                com.squareup.okhttp.mockwebserver.MockResponse response = new com.squareup.okhttp.mockwebserver.MockResponse();
+                String path = request.getPath();
+                if (path.equals("/exhibitor/v1/explorer/node?key=/svc")) {
+                    return response.setBody("[{\"title\":\"a\",\"key\":\"/svc/a\"},{\"title\":\"b c\",\"key\":\"/svc/b c\"}]");
+                } else if (path.equals("/exhibitor/v1/explorer/node?key=/svc/a")) {
+                    return response.setBody("[{\"title\":\"a1\",\"key\":\"/svc/a/a1\"},{\"title\":\"a2\",\"key\":\"/svc/a/a2\"}]");
+                } else if (path.startsWith("/exhibitor/v1/explorer/node")) {
+                    return response.setBody("[]");
+                }
+                String znode = path.substring("/exhibitor/v1/explorer/znode".length());
+                if (failing.get() && znode.equals("/svc/a/a2")) {
+                    return response.setResponseCode(500);
+                }
+                deletes.add(znode);
+                return response.setBody("{\"succeeded\":true}");
+            }
+        });
+        exhibitor.start();
+
+        try {
+            ExhibitorApi api = ApiBuilder.build(exhibitor.url("/").toString(), ExhibitorApi.class);
+            ExhibitorApi.DeleteReport report = api.deleteRecursively("svc", 4);
+            Assert.assertTrue(report.isSucceeded());
+            Assert.assertEquals(report.getDeleted(), 5);
+            Assert.assertEquals(report.getFailed(), 0);
+            // children always go before their parent
+            Assert.assertTrue(deletes.indexOf("/svc/a/a1") < deletes.indexOf("/svc/a"));
+            Assert.assertTrue(deletes.indexOf("/svc/a/a2") < deletes.indexOf("/svc/a"));
+            Assert.assertTrue(deletes.indexOf("/svc/a") < deletes.indexOf("/svc"));
+            Assert.assertTrue(deletes.indexOf("/svc/b%20c") < deletes.indexOf("/svc"));
+            Assert.assertEquals(deletes.get(deletes.size() - 1), "/svc");
+
+            // a failed leaf keeps its ancestors, the other branch is still deleted
+            deletes.clear();
+            failing.set(true);
+            report = api.deleteRecursively("/svc", 4);
+            Assert.assertFalse(report.isSucceeded());
+            Assert.assertEquals(report.getFailed(), 1);
+            Assert.assertEquals(report.getDeleted(), 2);
+            Assert.assertFalse(deletes.contains("/svc/a"));
+            Assert.assertFalse(deletes.contains("/svc"));
+
+            // without --recursive the CLI sends a single delete and lists nothing
+            deletes.clear();
+            failing.set(false);
+            int before = exhibitor.getRequestCount();
+            Assert.assertTrue(CLI.cleanup(api, "svc"));
+            Assert.assertEquals(Arrays.asList("/svc"), deletes);
+            Assert.assertEquals(before + 1, exhibitor.getRequestCount());
+
+            // the root and the cluster znodes are never deleted, nothing reaches exhibitor
+            int requests = exhibitor.getRequestCount();
+            for (String znode : Arrays.asList(null, "", " ", "/", "//", "svc//a", "/svc/..", "/mesos", "zookeeper/quota", "marathon")) {
+                try {
+                    api.deleteRecursively(znode, 4);
+                    Assert.fail("Znode " + znode + " was accepted");
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+            Assert.assertFalse(CLI.cleanup(api, "/"));
+            Assert.assertFalse(CLI.cleanupRecursively(api, "/", 4));
+            Assert.assertEquals(exhibitor.getRequestCount(), requests);
+        } finally {
+            exhibitor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws IOException, InterruptedException {
+        MockWebServer master = new MockWebServer();
+        master.enqueue(new com.squareup.okhttp.mockwebserver.MockResponse().setBody(resource("slaves_kafka_sec.json")));
+        master.enqueue(new com.squareup.okhttp.mockwebserver.MockResponse().setResponseCode(404));
+        master.start();
+
+        Metrics.reset();
+        TransferStats.reset();
+        JanithorServer server = new JanithorServer(mesosApi, null, null, "secret");
+        try {
+            MesosApi mesos = ApiBuilder.build(master.url("/").toString(), MesosApi.class);
+            mesos.setEndpointsPrefix(MesosApi.EndpointPrefix.EMPTY);
+            mesos.setServerFilters(false);
+            mesos.findResourcesFor(ROLE, SLAVE_ID);
+            ExhibitorApi exhibitor = ApiBuilder.build(master.url("/").toString(), ExhibitorApi.class);
+            Assert.assertFalse(exhibitor.delete("dcos-service-kafka-sec"));
+
+            // 409 on the whole batch is retried in halves
+            ResponseBody conflict = ResponseBody.create(MediaType.parse("application/json"), "");
+            when(this.mesosInterface.unreserve(any(), any())).thenReturn(Calls.response(Response.error(409, conflict)));
+            mesosApi.unreserveResourcesFor(SLAVE_ID, Arrays.asList("{\"name\":\"cpus\"}", "{\"name\":\"mem\"}"));
+
+            String host = "localhost:" + master.getPort();
+            String metrics = Metrics.scrape();
+            Assert.assertTrue(metrics.contains("janithor_http_responses_total{host=\"" + host + "\",method=\"GET\",endpoint=\"/slaves\",code=\"200\"} 1\n"));
+            Assert.assertTrue(metrics.contains("janithor_http_responses_total{host=\"" + host + "\",method=\"DELETE\",endpoint=\"/exhibitor/v1/explorer/znode/{znode}\",code=\"404\"} 1\n"));
+            Assert.assertTrue(metrics.contains("janithor_http_request_duration_seconds_bucket{host=\"" + host + "\",method=\"GET\",endpoint=\"/slaves\",le=\"+Inf\"} 1\n"));
+            Assert.assertTrue(metrics.contains("janithor_http_decoded_bytes_total{endpoint=\"/slaves\"} " + resource("slaves_kafka_sec.json").getBytes("UTF-8").length + "\n"));
+            Assert.assertTrue(metrics.contains("janithor_retries_total{operation=\"unreserve\",reason=\"conflict\"} 1\n"));
+            Assert.assertTrue(metrics.contains("janithor_operation_duration_seconds_count{api=\"mesos\",operation=\"find_resources\"} 1\n"));
+            Assert.assertTrue(metrics.contains("janithor_operation_duration_seconds_count{api=\"exhibitor\",operation=\"delete\"} 1\n"));
+
+            Metrics.recordRun("unreserve", false);
+            Path file = Files.createTempDirectory("janithor").resolve("janithor.prom");
+            Metrics.writeTo(file);
+            String written = new String(Files.readAllBytes(file), "UTF-8");
+            Assert.assertTrue(written.contains("janithor_last_run_success{operation=\"unreserve\"} 0\n"));
+
+            server.start(0);
+            Assert.assertTrue(request(server, "GET", "/metrics", 200).contains("# TYPE janithor_http_request_duration_seconds histogram"));
+        } finally {
+            server.stop();
+            master.shutdown();
+        }
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        java.util.concurrent.atomic.AtomicInteger inFlight = new java.util.concurrent.atomic.AtomicInteger();
+        java.util.concurrent.atomic.AtomicInteger maxInFlight = new java.util.concurrent.atomic.AtomicInteger();
+        MockWebServer master = new MockWebServer();
+        master.setDispatcher(new Dispatcher() {
+            @Override
+            public com.squareup.okhttp.mockwebserver.MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                Thread.sleep(20);
+                inFlight.decrementAndGet();
+                int code = request.getPath().startsWith("/busy") ? 503 : 200;
+                return new com.squareup.okhttp.mockwebserver.MockResponse().setResponseCode(code);
+            }
+        });
+        master.start();
+
+        LimitInterceptor limiter = new LimitInterceptor(6, 0);
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(limiter).build();
+        String host = "localhost:" + master.getPort();
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(8);
+        try {
+            List<java.util.concurrent.Future<Integer>> responses = new java.util.ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                responses.add(executor.submit(() -> {
+                    try (okhttp3.Response response = client.newCall(new Request.Builder().url(master.url("/slaves").toString()).build()).execute()) {
+                        return response.code();
+                    }
+                }));
+            }
+            for (java.util.concurrent.Future<Integer> response : responses) {
+                Assert.assertEquals((int) response.get(), 200);
+            }
+            // the limit grows from 4 while every slot is used, never above the configured maximum
+            double limit = limiter.getLimit(host);
+            Assert.assertTrue(limit > 4 && limit <= 6);
+            Assert.assertTrue(maxInFlight.get() <= 6);
+
+            // an overloaded master halves the limit, never below a single request
+            client.newCall(new Request.Builder().url(master.url("/busy").toString()).build()).execute().close();
+            Assert.assertEquals(limiter.getLimit(host), limit / 2, 0.0);
+            for (int i = 0; i < 3; i++) {
+                Thread.sleep(50);
+                client.newCall(new Request.Builder().url(master.url("/busy").toString()).build()).execute().close();
+            }
+            Assert.assertEquals(limiter.getLimit(host), 1.0, 0.0);
+        } finally {
+            executor.shutdownNow();
+            master.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncCallsWaitOffTheDispatcher() throws Exception {
+        java.util.concurrent.atomic.AtomicInteger running = new java.util.concurrent.atomic.AtomicInteger();
+        MockWebServer master = new MockWebServer();
+        master.setDispatcher(new Dispatcher() {
+            @Override
+            public com.squareup.okhttp.mockwebserver.MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                running.accumulateAndGet(HTTPUtils.getSharedClient().dispatcher().runningCallsCount(), Math::max);
+                Thread.sleep(20);
+                return new com.squareup.okhttp.mockwebserver.MockResponse().setBody("{}");
+            }
+        });
+        master.start();
+
+        HTTPUtils.configureLimits(LimitInterceptor.DEFAULT_MAX_IN_FLIGHT, 0);
+        try {
+            MesosInterface mesos = HTTPUtils.buildBasicInterface(master.url("/").toString(), MesosInterface.class);
+            List<java.util.concurrent.CompletableFuture<Response<ResponseBody>>> responses = new java.util.ArrayList<>();
+            for (int i = 0; i < 24; i++) {
+                responses.add(HTTPUtils.enqueue(mesos.findResources()));
+            }
+            for (java.util.concurrent.CompletableFuture<Response<ResponseBody>> response : responses) {
+                response.get(10, TimeUnit.SECONDS).body().close();
+            }
+            // calls waiting for the adaptive limit, which starts at 4, are not running on the dispatcher;
+            // blocked in the interceptor, all of them would be
+            Assert.assertEquals(HTTPUtils.getSharedClient().dispatcher().getMaxRequestsPerHost(), LimitInterceptor.DEFAULT_MAX_IN_FLIGHT);
+            Assert.assertTrue("running " + running.get(), running.get() <= 12);
+        } finally {
+            HTTPUtils.configureLimits(LimitInterceptor.DEFAULT_MAX_IN_FLIGHT, LimitInterceptor.DEFAULT_REQUESTS_PER_SECOND);
+            master.shutdown();
+        }
+    }
+
+    @Test
+    public void testConnectionPoolSize() throws Exception {
+        MockWebServer master = new MockWebServer();
+        master.setDispatcher(new Dispatcher() {
+            @Override
+            public com.squareup.okhttp.mockwebserver.MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                Thread.sleep(50);
+                return new com.squareup.okhttp.mockwebserver.MockResponse().setBody("{}");
+            }
+        });
+        master.start();
+
+        HTTPUtils.configureConnectionPool(2, 60, TimeUnit.SECONDS);
+        try {
+            MesosInterface mesos = HTTPUtils.buildBasicInterface(master.url("/").toString(), MesosInterface.class);
+            List<java.util.concurrent.CompletableFuture<Response<ResponseBody>>> responses = new java.util.ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                responses.add(HTTPUtils.enqueue(mesos.findResources()));
+            }
+            for (java.util.concurrent.CompletableFuture<Response<ResponseBody>> response : responses) {
+                response.get(10, TimeUnit.SECONDS).body().close();
+            }
+            // concurrent calls opened more connections than the pool keeps, the excess is evicted in the background
+            Assert.assertEquals(8, master.getRequestCount());
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (HTTPUtils.getSharedClient().connectionPool().idleConnectionCount() > 2 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue("idle " + HTTPUtils.getSharedClient().connectionPool().idleConnectionCount(),
+                    HTTPUtils.getSharedClient().connectionPool().idleConnectionCount() <= 2);
+        } finally {
+            HTTPUtils.configureConnectionPool(0, HTTPUtils.DEFAULT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            master.shutdown();
+        }
+
+        try {
+            HTTPUtils.configureConnectionPool(-1, 60, TimeUnit.SECONDS);
+            Assert.fail("negative pool size accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLimitReleasedOnRuntimeException() throws Exception {
+        MockWebServer master = new MockWebServer();
+        master.enqueue(new com.squareup.okhttp.mockwebserver.MockResponse());
+        master.start();
+
+        // a single slot: a slot kept by the failed call would block the next one for good
+        java.util.concurrent.atomic.AtomicBoolean fail = new java.util.concurrent.atomic.AtomicBoolean(true);
+        OkHttpClient client = new OkHttpClient.Builder()
+                .addInterceptor(new LimitInterceptor(1, 0))
+                .addInterceptor(chain -> {
+                    if (fail.getAndSet(false)) throw new IllegalStateException("broken interceptor");
+                    return chain.proceed(chain.request());
+                })
+                .build();
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newSingleThreadExecutor();
+        try {
+            Request request = new Request.Builder().url(master.url("/").toString()).build();
+            try {
+                client.newCall(request).execute().close();
+                Assert.fail("interceptor failure swallowed");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            java.util.concurrent.Future<Integer> code = executor.submit(() -> {
+                try (okhttp3.Response response = client.newCall(request).execute()) {
+                    return response.code();
+                }
+            });
+            Assert.assertEquals(200, (int) code.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+            master.shutdown();
+        }
+    }
+
+    @Test
+    public void testRateLimit() throws IOException {
+        MockWebServer master = new MockWebServer();
+        for (int i = 0; i < 15; i++) {
+            master.enqueue(new com.squareup.okhttp.mockwebserver.MockResponse());
+        }
+        master.start();
+
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(new LimitInterceptor(4, 10)).build();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < 15; i++) {
+                client.newCall(new Request.Builder().url(master.url("/slaves").toString()).build()).execute().close();
+            }
+            // a burst of 10 requests, then one every 100ms
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(450));
+        } finally {
+            master.shutdown();
+        }
+    }
+
+    @Test
+    public void testLeaderDiscovery() throws IOException, InterruptedException {
+        MockWebServer leader = new MockWebServer();
+        MockWebServer standby = new MockWebServer();
+        leader.setDispatcher(standInMaster(leader, null));
+        standby.setDispatcher(standInMaster(standby, leader));
+        leader.start();
+        standby.start();
+
+        // the first master is down, the second one is a standby pointing at the leader
+        String masters = "http://localhost:1/," + standby.url("/") + "," + leader.url("/");
+        try {
+            MesosApi mesos = ApiBuilder.build(masters, MesosApi.class);
+            mesos.setEndpointsPrefix(MesosApi.EndpointPrefix.EMPTY);
+            mesos.setServerFilters(false);
+            Assert.assertArrayEquals(mesos.findFrameworkId(SERVICE, ROLE, PRINCIPAL).get(), new String[]{FRAMEWORK_ID});
+            Assert.assertTrue(mesos.teardown(FRAMEWORK_ID));
+
+            // the standby is only asked for the leader, every call goes straight to the leader
+            Assert.assertEquals(standby.getRequestCount(), 1);
+            Assert.assertEquals(standby.takeRequest().getPath(), "/master/redirect");
+            Assert.assertEquals(leader.getRequestCount(), 2);
+
+            // the leader steps down: a redirected POST is sent again to the new leader
+            leader.setDispatcher(standInMaster(leader, standby));
+            standby.setDispatcher(standInMaster(standby, null));
+            Assert.assertTrue(mesos.teardown(FRAMEWORK_ID));
+            Assert.assertTrue(mesos.teardown(FRAMEWORK_ID));
+            Assert.assertEquals(leader.getRequestCount(), 3);
+            Assert.assertEquals(standby.getRequestCount(), 3);
+        } finally {
+            leader.shutdown();
+            standby.shutdown();
+        }
+    }
+
+    @Test
+    public void testLeaderDiscoveryAuthenticatedUnderPrefix() throws IOException, InterruptedException {
+        MockWebServer leader = new MockWebServer();
+        MockWebServer standby = new MockWebServer();
+        leader.setDispatcher(new Dispatcher() {
+            @Override
+            public com.squareup.okhttp.mockwebserver.MockResponse dispatch(RecordedRequest request) {
+                return new com.squareup.okhttp.mockwebserver.MockResponse();
+            }
+        });
+        standby.setDispatcher(new Dispatcher() {
+            @Override
+            public com.squareup.okhttp.mockwebserver.MockResponse dispatch(RecordedRequest request) {
+                return new com.squareup.okhttp.mockwebserver.MockResponse().setResponseCode(307)
+                        .addHeader("Location", "//" + leader.getHostName() + ":" + leader.getPort());
+            }
+        });
+        leader.start();
+        standby.start();
+
+        // masters behind an admin router location, the leader is asked for under it with the call credentials
+        String masters = standby.url("/mesos/") + "," + leader.url("/mesos/");
+        try {
+            MesosApi mesos = ApiBuilder.build("token", masters, MesosApi.class);
+            mesos.setEndpointsPrefix(MesosApi.EndpointPrefix.EMPTY);
+            Assert.assertTrue(mesos.teardown(FRAMEWORK_ID));
+
+            RecordedRequest discovery = standby.takeRequest();
+            Assert.assertEquals("/mesos/master/redirect", discovery.getPath());
+            Assert.assertEquals("token=token", discovery.getHeader("Authorization"));
+            Assert.assertEquals(1, leader.getRequestCount());
+        } finally {
+            leader.shutdown();
+            standby.shutdown();
+        }
+    }
+
+    @Test
+    public void testLeaderFailoverOnTimeout() throws IOException {
+        MockWebServer hung = new MockWebServer();
+        MockWebServer leader = new MockWebServer();
+        hung.setDispatcher(new Dispatcher() {
+            @Override
+            public com.squareup.okhttp.mockwebserver.MockResponse dispatch(RecordedRequest request) {
+                // claims the leadership, then never answers
+                com.squareup.okhttp.mockwebserver.MockResponse response = new com.squareup.okhttp.mockwebserver.MockResponse();
+                return request.getPath().equals("/master/redirect") ? response
+                        : response.setSocketPolicy(com.squareup.okhttp.mockwebserver.SocketPolicy.NO_RESPONSE);
+            }
+        });
+        leader.setDispatcher(new Dispatcher() {
+            @Override
+            public com.squareup.okhttp.mockwebserver.MockResponse dispatch(RecordedRequest request) {
+                return new com.squareup.okhttp.mockwebserver.MockResponse();
+            }
+        });
+        hung.start();
+        leader.start();
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder().readTimeout(200, TimeUnit.MILLISECONDS);
+        new com.stratio.mesos.http.LeaderInterceptor(Arrays.asList(hung.url("/").toString(), leader.url("/").toString()), builder.build())
+                .install(builder);
+        OkHttpClient client = builder.build();
+        try {
+            // the master may have received a POST, it is not sent again
+            try {
+                client.newCall(new Request.Builder().url(hung.url("/teardown").toString())
+                        .post(RequestBody.create(MediaType.parse("text/plain"), "frameworkId")).build()).execute().close();
+                Assert.fail("timed out POST sent again");
+            } catch (java.net.SocketTimeoutException e) {
+                Assert.assertEquals(0, leader.getRequestCount());
+            }
+
+            // a GET is sent to the next leader found
+            try (okhttp3.Response response = client.newCall(new Request.Builder().url(hung.url("/frameworks").toString()).build()).execute()) {
+                Assert.assertEquals(200, response.code());
+            }
+            Assert.assertEquals(2, leader.getRequestCount());
+        } finally {
+            hung.shutdown();
+            leader.shutdown();
+        }
+    }
+
+    // a master redirecting every request to the leader, or serving them when it is the leader
+    private Dispatcher standInMaster(MockWebServer self, MockWebServer leader) {
+        return new Dispatcher() {
+            @Override
+            public com.squareup.okhttp.mockwebserver.MockResponse dispatch(RecordedRequest request) {
+                com.squareup.okhttp.mockwebserver.MockResponse response = new com.squareup.okhttp.mockwebserver.MockResponse();
+                MockWebServer target = leader != null ? leader : self;
+                if (leader != null || request.getPath().equals("/master/redirect")) {
+                    String path = request.getPath().equals("/master/redirect") ? "" : request.getPath();
+                    return response.setResponseCode(307).addHeader("Location", "//" + target.getHostName() + ":" + target.getPort() + path);
+                }
+                if (request.getPath().startsWith("/frameworks")) return response.setBody(resource("frameworks_kafka_sec.json"));
+                return response.setResponseCode(200);
+            }
+        };
+    }
+
+    private String request(JanithorServer server, String method, String path, int expectedCode) throws IOException {
+        return request(server, method, path, null, expectedCode);
+    }
+
+    private String request(JanithorServer server, String method, String path, String token, int expectedCode) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        if (token != null) {
+            connection.setRequestProperty(JanithorServer.TOKEN_HEADER, token);
+        }
+        Assert.assertEquals(connection.getResponseCode(), expectedCode);
+        try (InputStream in = expectedCode == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+            return new java.util.Scanner(in, "UTF-8").useDelimiter("\\Z").next();
+        }
+    }
+
+    private String resource(String name) {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(name)) {
+            return new java.util.Scanner(in, "UTF-8").useDelimiter("\\Z").next();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void testTokenCache() throws IOException {
+        Path directory = Files.createTempDirectory("janithor").resolve("tokens");
+        TokenCache cache = new TokenCache(directory, 60, TimeUnit.SECONDS);
+        long now = System.currentTimeMillis() / 1000;
+        String valid = jwt(now + 3600);
+        String expiring = jwt(now + 30);
+
+        Assert.assertEquals(TokenCache.expiresAt(valid), now + 3600);
+        Assert.assertEquals(TokenCache.expiresAt("not-a-jwt"), -1);
+
+        cache.put("https://sso", "admin", valid);
+        Assert.assertEquals(cache.get("https://sso", "admin").orElse(null), valid);
+        Assert.assertFalse(cache.get("https://sso", "other").isPresent());
+        Assert.assertFalse(cache.get("https://other-sso", "admin").isPresent());
+        try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+            Assert.assertEquals(Files.getPosixFilePermissions(files.findFirst().get()), PosixFilePermissions.fromString("rw-------"));
+        }
+
+        // tokens about to expire are discarded so a new login is performed
+        cache.put("https://sso", "admin", expiring);
+        Assert.assertFalse(cache.get("https://sso", "admin").isPresent());
+        // a cached token avoids the sso login
+        cache.put("https://sso", "admin", valid);
+        Assert.assertEquals(MarathonApi.obtainToken("admin", "1234", "https://sso", cache), valid);
+    }
+
+    private String jwt(long expiresAt) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes())
+                + "." + encoder.encodeToString(("{\"uid\":\"admin\",\"exp\":" + expiresAt + "}").getBytes())
+                + ".signature";
+    }
+
+    @Test
+    public void testClientsBuiltPerOperation() {
+        // token builds no client, batch builds its own on first use
+        String[] operations = {"lookup", "teardown", "unreserve", "resources", "exhibitor", "marathon", "uninstall", "token", "batch", "serve"};
+        String[] mesos = {"lookup", "teardown", "unreserve", "resources", "uninstall", "serve"};
+        String[] exhibitor = {"exhibitor", "uninstall", "serve"};
+        String[] marathon = {"marathon", "uninstall", "serve"};
+        for (String operation : operations) {
+            Assert.assertEquals(operation, Arrays.asList(mesos).contains(operation), com.stratio.mesos.Janithor.usesClient(operation, MesosApi.class));
+            Assert.assertEquals(operation, Arrays.asList(exhibitor).contains(operation), com.stratio.mesos.Janithor.usesClient(operation, ExhibitorApi.class));
+            Assert.assertEquals(operation, Arrays.asList(marathon).contains(operation), com.stratio.mesos.Janithor.usesClient(operation, MarathonApi.class));
+        }
+    }
+
+    @Test
+    public void testApiBuilderPerClient() {
+        for (Class<?> client : Arrays.asList(MesosApi.class, ExhibitorApi.class, MarathonApi.class)) {
+            Assert.assertTrue(client.isInstance(ApiBuilder.build("http://leader.mesos:5050", client)));
+            Assert.assertTrue(client.isInstance(ApiBuilder.build("token", "http://leader.mesos:5050", client)));
+            Assert.assertTrue(client.isInstance(ApiBuilder.build("principal", "secret", "http://leader.mesos:5050", client)));
+        }
+        // only the known clients are built
+        Assert.assertNull(ApiBuilder.build("http://leader.mesos:5050", String.class));
+    }
+
+    @Test
+    public void testUnknownApiVersion() {
+        // rejected while parsing the options, before any client is built or request sent
+        java.io.PrintStream out = System.out;
+        java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+        System.setOut(new java.io.PrintStream(printed));
+        try {
+            Assert.assertEquals(1, com.stratio.mesos.Janithor.run(new String[]{"-o", "lookup", "-u", "http://localhost:1", "-api", "v3"}));
+        } finally {
+            System.setOut(out);
+        }
+        Assert.assertTrue(printed.toString(), printed.toString().startsWith("Unknown mesos API v3, expected legacy or v1"));
+    }
+
+    @Test
+    public void testExitStatus() {
+        // scripts chaining janithor runs rely on a non-zero status when the operation fails
+        Assert.assertEquals(0, com.stratio.mesos.Janithor.run(new String[]{"-h"}));
+        Assert.assertEquals(1, com.stratio.mesos.Janithor.run(new String[]{"-o", "marathon", "-u", "http://localhost:1", "-f", "/kafka-sec"}));
+        Assert.assertEquals(1, com.stratio.mesos.Janithor.run(new String[]{"-o", "unknown", "-u", "http://localhost:1"}));
+    }
+
+    @Test
+    public void testInvalidNumericOptions() {
+        // rejected while parsing the options, a zero limit would block every request forever
+        String[][] invalid = {
+                {"--rate", "fast", "Invalid value fast for option rate, expected a number >= 0.0"},
+                {"--max-in-flight", "0", "Invalid value 0 for option max-in-flight, expected an integer >= 1"},
+                {"-n", "-2", "Invalid value -2 for option n, expected an integer >= 1"},
+                {"--port", "70000", "Invalid value 70000 for option port, expected an integer between 1 and 65535"},
+                {"--keep-alive", "1.5", "Invalid value 1.5 for option keep-alive, expected an integer >= 1"}};
+        java.io.PrintStream out = System.out;
+        try {
+            for (String[] option : invalid) {
+                java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+                System.setOut(new java.io.PrintStream(printed));
+                Assert.assertEquals(1, com.stratio.mesos.Janithor.run(new String[]{"-o", "lookup", "-u", "http://localhost:1", option[0], option[1]}));
+                Assert.assertTrue(printed.toString(), printed.toString().startsWith(option[2]));
+                Assert.assertTrue(printed.toString(), printed.toString().contains("usage: com.stratio.mesos.Janithor"));
+            }
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    @Test
+    public void testOperatorApi() throws IOException {
+        List<String> calls = new java.util.ArrayList<>();
+        org.mockito.stubbing.Answer<Call<ResponseBody>> operator = invocation -> {
+            okio.Buffer buffer = new okio.Buffer();
+            ((RequestBody) invocation.getArgument(0)).writeTo(buffer);
+            String call = buffer.readUtf8();
+            calls.add(call);
+            if (call.contains("GET_FRAMEWORKS")) return operatorResponse("operator_frameworks.json");
+            if (call.contains("GET_TASKS")) return operatorResponse("operator_tasks.json");
+            if (call.contains("GET_AGENTS")) return operatorResponse("operator_agents.json");
+            return Calls.response(Response.success(ResponseBody.create(MediaType.parse("application/json"), ""), rawResponse(202)));
+        };
+        when(this.mesosInterface.operator(any())).thenAnswer(operator);
+        when(this.mesosInterface.operatorState(any())).thenAnswer(operator);
+        // a master that only speaks JSON refuses the first protobuf state call
+        when(this.mesosInterface.operatorStateProtobuf(any())).thenReturn(Calls.response(
+                Response.<ResponseBody>error(415, ResponseBody.create(MediaType.parse("text/plain"), "unsupported"))));
+        mesosApi.setApiVersion(MesosApi.ApiVersion.V1);
+
+        // v1 responses answer the lookups exactly as the legacy endpoints
+        Assert.assertEquals(mesosApi.findFrameworkId(SERVICE, ROLE, PRINCIPAL).orElse(null)[0], FRAMEWORK_ID);
+        Assert.assertEquals(mesosApi.findFrameworkId(INACTIVE_SERVICE, INACTIVE_ROLE, INACTIVE_PRINCIPAL).orElse(null).length, 3);
+        Assert.assertArrayEquals(mesosApi.findSlavesForFramework(FRAMEWORK_ID).orElse(null), new String[]{SLAVE_ID});
+        Assert.assertEquals(mesosApi.findSlavesForFramework(INACTIVE_FRAMEWORK_ID).orElse(null).length, 2);
+        String[] resources = mesosApi.findResourcesFor(ROLE, SLAVE_ID);
+        Assert.assertEquals(resources.length, 7);
+
+        int[] codes = mesosApi.unreserveResourcesFor(SLAVE_ID, Arrays.asList(resources));
+        for (int code : codes) {
+            Assert.assertEquals(code, 202);
+        }
+        Assert.assertTrue(calls.stream().anyMatch(call -> call.startsWith("{\"type\":\"UNRESERVE_RESOURCES\"") && call.contains(SLAVE_ID)));
+        Assert.assertTrue(calls.stream().anyMatch(call -> call.startsWith("{\"type\":\"DESTROY_VOLUMES\"")));
+        verify(mesosInterface, times(0)).findFrameworks();
+        verify(mesosInterface, times(0)).findResources();
+        // state calls go through the streamed operator method, protobuf is asked for once
+        verify(mesosInterface, times(1)).operatorStateProtobuf(any());
+        verify(mesosInterface, times(3)).operatorState(any());
+    }
+
+    @Test
+    public void testOperatorStateClosedOnFailure() throws Exception {
+        List<java.util.concurrent.atomic.AtomicBoolean> closed = new java.util.ArrayList<>();
+        when(this.mesosInterface.operatorState(any())).thenAnswer(invocation -> {
+            okio.Buffer buffer = new okio.Buffer();
+            ((RequestBody) invocation.getArgument(0)).writeTo(buffer);
+            if (buffer.readUtf8().contains("GET_TASKS")) {
+                return Calls.failure(new IOException("master went away"));
+            }
+            java.util.concurrent.atomic.AtomicBoolean flag = new java.util.concurrent.atomic.AtomicBoolean();
+            closed.add(flag);
+            ResponseBody body = ResponseBody.create(MediaType.parse("application/json"), resource("operator_frameworks.json"));
+            return Calls.response(new ResponseBody() {
+                @Override
+                public MediaType contentType() {
+                    return body.contentType();
+                }
+
+                @Override
+                public long contentLength() {
+                    return body.contentLength();
+                }
+
+                @Override
+                public BufferedSource source() {
+                    return body.source();
+                }
+
+                @Override
+                public void close() {
+                    flag.set(true);
+                    body.close();
+                }
+            });
+        });
+        mesosApi.setApiVersion(MesosApi.ApiVersion.V1);
+        mesosApi.setOperatorProtobuf(false);
+
+        // GET_FRAMEWORKS answered, GET_TASKS failed: the streamed GET_FRAMEWORKS response must not leak
+        try {
+            mesosApi.findFrameworkIdAsync(SERVICE, ROLE, PRINCIPAL).get(10, TimeUnit.SECONDS);
+        } catch (java.util.concurrent.ExecutionException e) {
+            // the lookup may fail as well, the response is what matters
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!closed.get(0).get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("async GET_FRAMEWORKS response left open", closed.get(0).get());
+
+        mesosApi.refreshSnapshot();
+        mesosApi.findFrameworkId(SERVICE, ROLE, PRINCIPAL);
+        Assert.assertEquals(2, closed.size());
+        Assert.assertTrue("GET_FRAMEWORKS response left open", closed.get(1).get());
+    }
+
+    @Test
+    public void testOperatorApiProtobuf() throws IOException {
+        org.apache.mesos.v1.Protos.Resource.ReservationInfo reservation = org.apache.mesos.v1.Protos.Resource.ReservationInfo.newBuilder()
+                .setType(org.apache.mesos.v1.Protos.Resource.ReservationInfo.Type.DYNAMIC).setRole(ROLE).setPrincipal(PRINCIPAL).build();
+        org.apache.mesos.v1.master.Protos.Response frameworks = org.apache.mesos.v1.master.Protos.Response.newBuilder()
+                .setType(org.apache.mesos.v1.master.Protos.Response.Type.GET_FRAMEWORKS)
+                .setGetFrameworks(org.apache.mesos.v1.master.Protos.Response.GetFrameworks.newBuilder()
+                        .addFrameworks(org.apache.mesos.v1.master.Protos.Response.GetFrameworks.Framework.newBuilder()
+                                .setFrameworkInfo(org.apache.mesos.v1.Protos.FrameworkInfo.newBuilder()
+                                        .setId(org.apache.mesos.v1.Protos.FrameworkID.newBuilder().setValue(FRAMEWORK_ID))
+                                        .setName(SERVICE).setUser("root").addRoles(ROLE).setPrincipal(PRINCIPAL)
+                                        .addCapabilities(org.apache.mesos.v1.Protos.FrameworkInfo.Capability.newBuilder()
+                                                .setType(org.apache.mesos.v1.Protos.FrameworkInfo.Capability.Type.MULTI_ROLE)))
+                                .setActive(true).setConnected(true).setRecovered(false)))
+                .build();
+        org.apache.mesos.v1.master.Protos.Response tasks = org.apache.mesos.v1.master.Protos.Response.newBuilder()
+                .setType(org.apache.mesos.v1.master.Protos.Response.Type.GET_TASKS)
+                .setGetTasks(org.apache.mesos.v1.master.Protos.Response.GetTasks.newBuilder()
+                        .addTasks(org.apache.mesos.v1.Protos.Task.newBuilder()
+                                .setName("broker-0").setState(org.apache.mesos.v1.Protos.TaskState.TASK_RUNNING)
+                                .setTaskId(org.apache.mesos.v1.Protos.TaskID.newBuilder().setValue("broker-0"))
+                                .setFrameworkId(org.apache.mesos.v1.Protos.FrameworkID.newBuilder().setValue(FRAMEWORK_ID))
+                                .setAgentId(org.apache.mesos.v1.Protos.AgentID.newBuilder().setValue(SLAVE_ID))))
+                .build();
+        org.apache.mesos.v1.master.Protos.Response agents = org.apache.mesos.v1.master.Protos.Response.newBuilder()
+                .setType(org.apache.mesos.v1.master.Protos.Response.Type.GET_AGENTS)
+                .setGetAgents(org.apache.mesos.v1.master.Protos.Response.GetAgents.newBuilder()
+                        .addAgents(org.apache.mesos.v1.master.Protos.Response.GetAgents.Agent.newBuilder()
+                                .setAgentInfo(org.apache.mesos.v1.Protos.AgentInfo.newBuilder()
+                                        .setHostname("10.200.0.152")
+                                        .setId(org.apache.mesos.v1.Protos.AgentID.newBuilder().setValue(SLAVE_ID)))
+                                .setActive(true).setVersion("1.4.0")
+                                .addTotalResources(org.apache.mesos.v1.Protos.Resource.newBuilder()
+                                        .setName("cpus").setType(org.apache.mesos.v1.Protos.Value.Type.SCALAR)
+                                        .setScalar(org.apache.mesos.v1.Protos.Value.Scalar.newBuilder().setValue(1.5))
+                                        .addReservations(reservation))
+                                .addTotalResources(org.apache.mesos.v1.Protos.Resource.newBuilder()
+                                        .setName("mem").setType(org.apache.mesos.v1.Protos.Value.Type.SCALAR)
+                                        .setScalar(org.apache.mesos.v1.Protos.Value.Scalar.newBuilder().setValue(2048)))))
+                .build();
+
+        List<String> calls = new java.util.ArrayList<>();
+        when(this.mesosInterface.operatorStateProtobuf(any())).thenAnswer(invocation -> {
+            okio.Buffer buffer = new okio.Buffer();
+            ((RequestBody) invocation.getArgument(0)).writeTo(buffer);
+            org.apache.mesos.v1.master.Protos.Call.Type type = org.apache.mesos.v1.master.Protos.Call.parseFrom(buffer.readByteArray()).getType();
+            org.apache.mesos.v1.master.Protos.Response response = type == org.apache.mesos.v1.master.Protos.Call.Type.GET_FRAMEWORKS ? frameworks
+                    : type == org.apache.mesos.v1.master.Protos.Call.Type.GET_TASKS ? tasks : agents;
+            return Calls.response(ResponseBody.create(MediaType.parse("application/x-protobuf"), response.toByteArray()));
+        });
+        when(this.mesosInterface.operator(any())).thenAnswer(invocation -> {
+            okio.Buffer buffer = new okio.Buffer();
+            ((RequestBody) invocation.getArgument(0)).writeTo(buffer);
+            calls.add(buffer.readUtf8());
+            return Calls.response(Response.success(ResponseBody.create(MediaType.parse("application/json"), ""), rawResponse(202)));
+        });
+        mesosApi.setApiVersion(MesosApi.ApiVersion.V1);
+
+        Assert.assertArrayEquals(mesosApi.findFrameworkId(SERVICE, ROLE, PRINCIPAL).orElse(null), new String[]{FRAMEWORK_ID});
+        Assert.assertArrayEquals(mesosApi.findSlavesForFramework(FRAMEWORK_ID).orElse(null), new String[]{SLAVE_ID});
+        List<Resource> resources = mesosApi.findReservationsFor(ROLE, SLAVE_ID);
+        Assert.assertEquals(1, resources.size());
+        Assert.assertEquals("cpus", resources.get(0).getName());
+        Assert.assertEquals(1.5, resources.get(0).getScalar(), 0);
+        Assert.assertEquals(PRINCIPAL, resources.get(0).getPrincipal());
+
+        // unreserve sends the resource back with the proto field names mesos reads in JSON
+        Assert.assertArrayEquals(new int[]{202}, mesosApi.unreserve(SLAVE_ID, resources));
+        JsonNode reserved = new ObjectMapper().readTree(calls.get(0)).path("unreserve_resources").path("resources").path(0);
+        Assert.assertEquals("SCALAR", reserved.path("type").asText());
+        Assert.assertEquals("DYNAMIC", reserved.path("reservations").path(0).path("type").asText());
+        Assert.assertEquals(ROLE, reserved.path("reservations").path(0).path("role").asText());
+        verify(mesosInterface, times(3)).operatorStateProtobuf(any());
+        verify(mesosInterface, never()).operatorState(any());
+    }
+
+    @Test
+    public void testStateCallsStreamed() {
+        // buffered bodies would be read whole into memory before reaching the state parser
+        for (java.lang.reflect.Method method : MesosInterface.class.getMethods()) {
+            boolean state = method.getName().startsWith("find") || method.getName().startsWith("operatorState");
+            Assert.assertEquals(method.toString(), state, method.isAnnotationPresent(retrofit2.http.Streaming.class));
+        }
+    }
+
+    private Call<ResponseBody> operatorResponse(String name) {
+        File file = new File(getClass().getClassLoader().getResource(name).getFile());
+        return Calls.response(new MockResponse("application/json", file.length(), file));
+    }
+
     @Test
     public void testMesosApiBuilderWithToken() {
         MesosApi api = ApiBuilder.build("token", "http://leader.mesos:5050", MesosApi.class);
@@ -250,6 +1473,26 @@ public class APITest {
         }
     }
 
+    @Test
+    public void testSharedHttpClient() throws NoSuchFieldException, IllegalAccessException {
+        OkHttpClient token = (OkHttpClient) getRetrofitInstance(ApiBuilder.build("token", "http://leader.mesos:5050", MesosApi.class)).callFactory();
+        OkHttpClient basic = (OkHttpClient) getRetrofitInstance(ApiBuilder.build("http://leader.mesos:5050", MesosApi.class)).callFactory();
+
+        // every client reuses the same connections, threads and TLS context
+        Assert.assertSame(token.connectionPool(), basic.connectionPool());
+        Assert.assertSame(token.dispatcher(), basic.dispatcher());
+        Assert.assertSame(token.sslSocketFactory(), basic.sslSocketFactory());
+    }
+
+    private okhttp3.Response rawResponse(int code) {
+        return new okhttp3.Response.Builder()
+                .code(code)
+                .message("mock")
+                .protocol(Protocol.HTTP_1_1)
+                .request(new Request.Builder().url("http://localhost/").build())
+                .build();
+    }
+
     private Retrofit getRetrofitInstance(MesosApi api) throws NoSuchFieldException, IllegalAccessException {
         Field mesosInterface = api.getClass().getDeclaredField("mesosInterface");
         mesosInterface.setAccessible(true);